@@ -1,5 +1,6 @@
 package cn.darkjrong.watermark;
 
+import cn.darkjrong.watermark.domain.SrcFile;
 import cn.darkjrong.watermark.enums.ExceptionEnum;
 import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
@@ -53,6 +54,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     private static byte[] convertWord(byte[] srcFile, int saveFormat) throws WatermarkException {
+        return convertWord(srcFile, FileTypeUtils.detect(srcFile), saveFormat);
+    }
+
+    /**
+     * 文件类型转换
+     *
+     * @param srcFile    src文件
+     * @param fileType   已探测的文件类型
+     * @param saveFormat {@link SaveFormat} 保存格式
+     * @return {@link byte[]} 字节数组
+     * @throws WatermarkException 水印异常
+     */
+    private static byte[] convertWord(byte[] srcFile, FileType fileType, int saveFormat) throws WatermarkException {
         LicenseUtils.verificationLicense();
         ByteArrayOutputStream os = null;
         ByteArrayInputStream in = null;
@@ -60,7 +74,7 @@ public class Converter {
             os = new ByteArrayOutputStream(1024);
             in = new ByteArrayInputStream(srcFile);
             Document doc = null;
-            if (FileTypeUtils.isHtml(srcFile)) {
+            if (fileType == FileType.HTML) {
                 com.aspose.words.HtmlLoadOptions htmlOptions = new com.aspose.words.HtmlLoadOptions();
                 doc = new Document(in, htmlOptions);
             } else {
@@ -103,6 +117,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     private static byte[] convertPdf(byte[] srcFile, com.aspose.pdf.SaveFormat saveFormat) throws WatermarkException {
+        return convertPdf(srcFile, FileTypeUtils.detect(srcFile), saveFormat);
+    }
+
+    /**
+     * 文件类型转换
+     *
+     * @param srcFile    src文件
+     * @param fileType   已探测的文件类型
+     * @param saveFormat {@link com.aspose.pdf.SaveFormat} 保存格式
+     * @return {@link byte[]} 字节数组
+     * @throws WatermarkException 水印异常
+     */
+    private static byte[] convertPdf(byte[] srcFile, FileType fileType, com.aspose.pdf.SaveFormat saveFormat) throws WatermarkException {
         LicenseUtils.verificationLicense();
         ByteArrayOutputStream os = null;
         ByteArrayInputStream in = null;
@@ -110,7 +137,7 @@ public class Converter {
             os = new ByteArrayOutputStream(1024);
             in = new ByteArrayInputStream(srcFile);
             com.aspose.pdf.Document doc = null;
-            if (FileTypeUtils.isHtml(srcFile)) {
+            if (fileType == FileType.HTML) {
                 HtmlLoadOptions htmlOptions = new HtmlLoadOptions();
                 doc = new com.aspose.pdf.Document(in, htmlOptions);
             } else {
@@ -153,6 +180,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     private static byte[] convertExcel(byte[] srcFile, int saveFormat) throws WatermarkException {
+        return convertExcel(srcFile, FileTypeUtils.detect(srcFile), saveFormat);
+    }
+
+    /**
+     * 文件类型转换
+     *
+     * @param srcFile    src文件
+     * @param fileType   已探测的文件类型
+     * @param saveFormat {@link SaveFormat} 保存格式
+     * @return {@link byte[]} 字节数组
+     * @throws WatermarkException 水印异常
+     */
+    private static byte[] convertExcel(byte[] srcFile, FileType fileType, int saveFormat) throws WatermarkException {
         LicenseUtils.verificationLicense();
         ByteArrayOutputStream os = null;
         ByteArrayInputStream in = null;
@@ -160,7 +200,7 @@ public class Converter {
             os = new ByteArrayOutputStream(1024);
             in = new ByteArrayInputStream(srcFile);
             Workbook doc = null;
-            if (FileTypeUtils.isHtml(srcFile)) {
+            if (fileType == FileType.HTML) {
                 com.aspose.cells.HtmlLoadOptions htmlOptions = new com.aspose.cells.HtmlLoadOptions();
                 doc = new Workbook(in, htmlOptions);
             } else {
@@ -275,8 +315,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     public static byte[] html2Pdf(byte[] htmlFile) throws WatermarkException {
-        Assert.isTrue(FileTypeUtils.isHtml(htmlFile), getErrorMsg(FileType.HTML));
-        return convertPdf(htmlFile, com.aspose.pdf.SaveFormat.Pdf);
+        return html2Pdf(SrcFile.builder().bytes(htmlFile).build());
+    }
+
+    /**
+     * html转pdf
+     *
+     * @param htmlFile html文件
+     * @return {@link byte[]}
+     * @throws WatermarkException 水印异常
+     */
+    public static byte[] html2Pdf(SrcFile htmlFile) throws WatermarkException {
+        Assert.isTrue(htmlFile.getFileType() == FileType.HTML, getErrorMsg(FileType.HTML));
+        return convertPdf(htmlFile.getBytes(), htmlFile.getFileType(), com.aspose.pdf.SaveFormat.Pdf);
     }
 
     /**
@@ -323,8 +374,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     public static byte[] doc2Docx(byte[] docFile) throws WatermarkException {
-        Assert.isTrue(FileTypeUtils.isDoc(docFile), getErrorMsg(FileType.PDF));
-        return convertWord(docFile, SaveFormat.DOCX);
+        return doc2Docx(SrcFile.builder().bytes(docFile).build());
+    }
+
+    /**
+     * doc 转docx
+     *
+     * @param docFile 字文件
+     * @return {@link byte[]}
+     * @throws WatermarkException 水印异常
+     */
+    public static byte[] doc2Docx(SrcFile docFile) throws WatermarkException {
+        Assert.isTrue(docFile.getFileType() == FileType.DOC, getErrorMsg(FileType.DOC));
+        return convertWord(docFile.getBytes(), docFile.getFileType(), SaveFormat.DOCX);
     }
 
     /**
@@ -371,8 +433,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     public static byte[] xls2Xlsx(byte[] docFile) throws WatermarkException {
-        Assert.isTrue(FileTypeUtils.isXls(docFile), getErrorMsg(FileType.XLS));
-        return convertExcel(docFile, com.aspose.cells.SaveFormat.XLSX);
+        return xls2Xlsx(SrcFile.builder().bytes(docFile).build());
+    }
+
+    /**
+     * xls 转 xlsx
+     *
+     * @param docFile 字文件
+     * @return {@link byte[]}
+     * @throws WatermarkException 水印异常
+     */
+    public static byte[] xls2Xlsx(SrcFile docFile) throws WatermarkException {
+        Assert.isTrue(docFile.getFileType() == FileType.XLS, getErrorMsg(FileType.XLS));
+        return convertExcel(docFile.getBytes(), docFile.getFileType(), com.aspose.cells.SaveFormat.XLSX);
     }
 
     /**
@@ -419,8 +492,19 @@ public class Converter {
      * @throws WatermarkException 水印异常
      */
     public static byte[] ppt2Pptx(byte[] docFile) throws WatermarkException {
-        Assert.isTrue(FileTypeUtils.isPpt(docFile), getErrorMsg(FileType.PPT));
-        return convertPpt(docFile, com.aspose.slides.SaveFormat.Pptx);
+        return ppt2Pptx(SrcFile.builder().bytes(docFile).build());
+    }
+
+    /**
+     * ppt 转 pptx
+     *
+     * @param docFile 字文件
+     * @return {@link byte[]}
+     * @throws WatermarkException 水印异常
+     */
+    public static byte[] ppt2Pptx(SrcFile docFile) throws WatermarkException {
+        Assert.isTrue(docFile.getFileType() == FileType.PPT, getErrorMsg(FileType.PPT));
+        return convertPpt(docFile.getBytes(), com.aspose.slides.SaveFormat.Pptx);
     }
 
     /**
@@ -0,0 +1,577 @@
+package cn.darkjrong.watermark;
+
+import cn.darkjrong.watermark.enums.FileType;
+import cn.darkjrong.watermark.exceptions.WatermarkException;
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 文件类型探测器
+ * <p>
+ * 只读取文件头部字节(OLE2 目录、ZIP 中央目录等容器结构按需定位读取), 一次判定出 {@link FileType},
+ * 不再对整个文件做 Tika 解析. 无法识别时返回 null, 由调用方决定是否回退到 Tika
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+@Slf4j
+final class FileTypeDetector {
+
+    /**
+     * 头部嗅探长度
+     */
+    private static final int HEAD_SIZE = 8 * 1024;
+
+    /**
+     * PDF 头允许出现的偏移范围
+     */
+    private static final int PDF_HEAD_SCAN = 1024;
+
+    /**
+     * ZIP 中央目录结束记录最大长度(22 + 注释最大长度)
+     */
+    private static final int ZIP_EOCD_SCAN = 22 + 0xFFFF;
+
+    /**
+     * ZIP 中央目录最大读取长度, 超出时只按已读条目判定
+     */
+    private static final int ZIP_CD_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * ZIP 本地头回退遍历的最大条目数
+     */
+    private static final int ZIP_LOCAL_LIMIT = 256;
+
+    /**
+     * OLE2 目录项最大读取数
+     */
+    private static final int OLE2_ENTRY_LIMIT = 4096;
+
+    private static final byte[] OLE2 = {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1};
+    private static final byte[] ZIP_LOCAL = {0x50, 0x4B, 0x03, 0x04};
+    private static final byte[] ZIP_EMPTY = {0x50, 0x4B, 0x05, 0x06};
+    private static final byte[] ZIP_SPANNED = {0x50, 0x4B, 0x07, 0x08};
+    private static final byte[] PDF = "%PDF-".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RTF = "{\\rtf".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RAR = {0x52, 0x61, 0x72, 0x21, 0x1A, 0x07};
+    private static final byte[] PNG = {(byte) 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A};
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] GIF87 = "GIF87a".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GIF89 = "GIF89a".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIFF_LE = {0x49, 0x49, 0x2A, 0x00};
+    private static final byte[] TIFF_BE = {0x4D, 0x4D, 0x00, 0x2A};
+    private static final byte[] BMP = {0x42, 0x4D};
+    private static final byte[] RIFF = "RIFF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WEBP = "WEBP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private static final String[] HTML_TAGS = {"<!doctype html", "<html", "<head", "<body", "<title", "<script"};
+
+    private FileTypeDetector() {
+    }
+
+    /**
+     * 探测文件类型
+     *
+     * @param file 文件
+     * @return {@link FileType} 无法识别时返回 null
+     */
+    static FileType detect(byte[] file) {
+        return detect(new ByteArraySource(file));
+    }
+
+    /**
+     * 探测文件类型
+     *
+     * @param file 文件
+     * @return {@link FileType} 无法识别时返回 null
+     */
+    static FileType detect(File file) {
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("the target is a directory");
+        }
+        FileSource source = null;
+        try {
+            source = new FileSource(file);
+            return detect(source);
+        } catch (IOException e) {
+            log.error(String.format("detect(), Exception 【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
+        } finally {
+            IoUtil.close(source);
+        }
+    }
+
+    private static FileType detect(Source source) {
+        try {
+            byte[] head = new byte[(int) Math.min(HEAD_SIZE, source.length())];
+            int length = source.read(0, head, 0, head.length);
+
+            if (startsWith(head, length, OLE2)) {
+                return detectOle2(source, head);
+            }
+            if (startsWith(head, length, ZIP_LOCAL) || startsWith(head, length, ZIP_SPANNED)) {
+                return detectZip(source);
+            }
+            if (startsWith(head, length, ZIP_EMPTY)) {
+                return FileType.ZIP;
+            }
+            if (startsWith(head, length, PDF)) {
+                return FileType.PDF;
+            }
+            if (startsWith(head, length, RTF)) {
+                return FileType.RTF;
+            }
+            if (startsWith(head, length, RAR)) {
+                return FileType.RAR;
+            }
+            if (isImage(head, length)) {
+                return FileType.IMAGE;
+            }
+            // 各格式的起始标识都不匹配时, 才按 PDF 头前有垃圾数据处理
+            if (isPdf(head, length)) {
+                return FileType.PDF;
+            }
+            if (isHtml(head, length)) {
+                return FileType.HTML;
+            }
+            return null;
+        } catch (IOException e) {
+            log.error(String.format("detect(), Exception 【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
+        }
+    }
+
+    private static boolean isImage(byte[] head, int length) {
+        return startsWith(head, length, PNG)
+                || startsWith(head, length, JPEG)
+                || startsWith(head, length, GIF87)
+                || startsWith(head, length, GIF89)
+                || startsWith(head, length, TIFF_LE)
+                || startsWith(head, length, TIFF_BE)
+                || (startsWith(head, length, BMP) && length >= 14 && head[6] == 0 && head[7] == 0 && head[8] == 0 && head[9] == 0)
+                || (startsWith(head, length, RIFF) && length >= 12 && regionMatches(head, 8, WEBP));
+    }
+
+    /**
+     * PDF 头之前允许有 BOM、空白等垃圾数据, 但不能出现标签, 避免把引用了 PDF 头的 HTML、XML 当作 PDF
+     */
+    private static boolean isPdf(byte[] head, int length) {
+        int index = indexOf(head, Math.min(length, PDF_HEAD_SCAN), PDF);
+        if (index < 0) {
+            return false;
+        }
+        for (int i = 0; i < index; i++) {
+            if (head[i] == '<') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * HTML 嗅探: 跳过 BOM、空白、XML 声明及注释后, 第一个标签为常见 HTML 标签
+     */
+    private static boolean isHtml(byte[] head, int length) {
+        int pos = startsWith(head, length, UTF8_BOM) ? UTF8_BOM.length : 0;
+        String text = new String(head, pos, length - pos, StandardCharsets.ISO_8859_1).toLowerCase();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (text.startsWith("<?", i)) {
+                i = skipTo(text, i, "?>");
+            } else if (text.startsWith("<!--", i)) {
+                i = skipTo(text, i, "-->");
+            } else {
+                break;
+            }
+            if (i < 0) {
+                return false;
+            }
+        }
+        for (String tag : HTML_TAGS) {
+            if (text.startsWith(tag, i)) {
+                int end = i + tag.length();
+                return end >= text.length() || !Character.isLetterOrDigit(text.charAt(end));
+            }
+        }
+        return false;
+    }
+
+    private static int skipTo(String text, int from, String end) {
+        int index = text.indexOf(end, from);
+        return index < 0 ? -1 : index + end.length();
+    }
+
+    /**
+     * OLE2(CFB) 容器: 按根存储下的流名区分 doc / xls / ppt
+     */
+    private static FileType detectOle2(Source source, byte[] head) throws IOException {
+        if (head.length < 512) {
+            return null;
+        }
+        int sectorShift = readUShort(head, 0x1E);
+        if (sectorShift != 9 && sectorShift != 12) {
+            return null;
+        }
+        Ole2 ole2 = new Ole2(source, head, sectorShift);
+        List<Ole2Entry> entries = ole2.readDirectory();
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        List<String> names = rootNames(entries);
+        if (names.contains("WordDocument")) {
+            return FileType.DOC;
+        }
+        if (names.contains("Workbook") || names.contains("Book")) {
+            return FileType.XLS;
+        }
+        if (names.contains("PowerPoint Document")) {
+            return FileType.PPT;
+        }
+        return null;
+    }
+
+    /**
+     * 根存储下的直接子项名称(遍历子项的红黑树, 嵌入对象所在的子存储不参与判定)
+     */
+    private static List<String> rootNames(List<Ole2Entry> entries) {
+        List<String> names = new ArrayList<>();
+        boolean[] visited = new boolean[entries.size()];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(entries.get(0).child);
+        while (!stack.isEmpty()) {
+            int id = stack.pop();
+            if (id < 0 || id >= entries.size() || visited[id]) {
+                continue;
+            }
+            visited[id] = true;
+            Ole2Entry entry = entries.get(id);
+            names.add(entry.name);
+            stack.push(entry.left);
+            stack.push(entry.right);
+        }
+        return names;
+    }
+
+    /**
+     * ZIP 容器: 读取中央目录中的条目名区分 docx / xlsx / pptx
+     */
+    private static FileType detectZip(Source source) throws IOException {
+        List<String> names = readZipCentralDirectory(source);
+        if (names == null) {
+            names = readZipLocalHeaders(source);
+        }
+
+        boolean contentTypes = false;
+        boolean word = false, excel = false, powerPoint = false, other = false;
+        for (String name : names) {
+            if (StrUtil.equals(name, "[Content_Types].xml")) {
+                contentTypes = true;
+            } else if (StrUtil.startWith(name, "word/")) {
+                word = true;
+            } else if (StrUtil.startWith(name, "xl/")) {
+                excel = true;
+            } else if (StrUtil.startWith(name, "ppt/")) {
+                powerPoint = true;
+            } else if (StrUtil.equals(name, "mimetype") || StrUtil.equals(name, "META-INF/MANIFEST.MF")) {
+                other = true;
+            }
+        }
+        if (contentTypes) {
+            if (word) {
+                return FileType.DOCX;
+            }
+            if (excel) {
+                return FileType.XLSX;
+            }
+            if (powerPoint) {
+                return FileType.PPTX;
+            }
+        }
+        return other ? null : FileType.ZIP;
+    }
+
+    private static List<String> readZipCentralDirectory(Source source) throws IOException {
+        long length = source.length();
+        int tailSize = (int) Math.min(length, ZIP_EOCD_SCAN);
+        byte[] tail = new byte[tailSize];
+        int read = source.read(length - tailSize, tail, 0, tailSize);
+        int eocd = -1;
+        for (int i = read - 22; i >= 0; i--) {
+            if (regionMatches(tail, i, ZIP_EMPTY)) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return null;
+        }
+        long cdSize = readUInt(tail, eocd + 12);
+        long cdOffset = readUInt(tail, eocd + 16);
+        if (cdOffset == 0xFFFFFFFFL || cdOffset + cdSize > length) {
+            return null;
+        }
+
+        byte[] cd = new byte[(int) Math.min(cdSize, ZIP_CD_LIMIT)];
+        int cdLength = source.read(cdOffset, cd, 0, cd.length);
+        List<String> names = new ArrayList<>();
+        int pos = 0;
+        while (pos + 46 <= cdLength && readInt(cd, pos) == 0x02014B50) {
+            int nameLength = readUShort(cd, pos + 28);
+            int extraLength = readUShort(cd, pos + 30);
+            int commentLength = readUShort(cd, pos + 32);
+            if (pos + 46 + nameLength > cdLength) {
+                break;
+            }
+            names.add(new String(cd, pos + 46, nameLength, StandardCharsets.UTF_8));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return names;
+    }
+
+    private static List<String> readZipLocalHeaders(Source source) throws IOException {
+        List<String> names = new ArrayList<>();
+        long length = source.length();
+        long pos = 0;
+        byte[] header = new byte[30];
+        while (names.size() < ZIP_LOCAL_LIMIT && pos + 30 <= length) {
+            if (source.read(pos, header, 0, 30) < 30 || readInt(header, 0) != 0x04034B50) {
+                break;
+            }
+            int flags = readUShort(header, 6);
+            long compressedSize = readUInt(header, 18);
+            int nameLength = readUShort(header, 26);
+            int extraLength = readUShort(header, 28);
+            byte[] name = new byte[nameLength];
+            source.read(pos + 30, name, 0, nameLength);
+            names.add(new String(name, StandardCharsets.UTF_8));
+            if ((flags & 0x08) != 0 && compressedSize == 0) {
+                break;
+            }
+            pos += 30L + nameLength + extraLength + compressedSize;
+        }
+        return names;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic) {
+        return length >= magic.length && regionMatches(head, 0, magic);
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] magic) {
+        if (offset < 0 || offset + magic.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] magic) {
+        for (int i = 0; i + magic.length <= length; i++) {
+            if (regionMatches(data, i, magic)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readUShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF)
+                | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private static long readUInt(byte[] data, int offset) {
+        return readInt(data, offset) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * OLE2 复合文档的最小读取实现, 只用于遍历目录
+     */
+    private static class Ole2 {
+
+        private static final int END_OF_CHAIN = -2;
+        private static final int HEADER_DIFAT_COUNT = 109;
+
+        private final Source source;
+        private final byte[] head;
+        private final int sectorSize;
+        private final byte[] intBuffer = new byte[4];
+
+        Ole2(Source source, byte[] head, int sectorShift) {
+            this.source = source;
+            this.head = head;
+            this.sectorSize = 1 << sectorShift;
+        }
+
+        List<Ole2Entry> readDirectory() throws IOException {
+            List<Ole2Entry> entries = new ArrayList<>();
+            byte[] sector = new byte[sectorSize];
+            int maxSectors = (int) Math.min(Integer.MAX_VALUE, source.length() / sectorSize);
+            int sectorId = readInt(head, 0x30);
+            for (int visited = 0; sectorId >= 0 && visited < maxSectors && entries.size() < OLE2_ENTRY_LIMIT; visited++) {
+                if (source.read(offset(sectorId), sector, 0, sectorSize) < sectorSize) {
+                    break;
+                }
+                for (int pos = 0; pos + 128 <= sectorSize; pos += 128) {
+                    entries.add(Ole2Entry.of(sector, pos));
+                }
+                sectorId = nextSector(sectorId);
+            }
+            return entries;
+        }
+
+        private long offset(int sectorId) {
+            return (long) (sectorId + 1) * sectorSize;
+        }
+
+        private int nextSector(int sectorId) throws IOException {
+            int perSector = sectorSize / 4;
+            int fatSector = fatSectorLocation(sectorId / perSector);
+            if (fatSector < 0) {
+                return END_OF_CHAIN;
+            }
+            return readSectorInt(fatSector, (sectorId % perSector) * 4);
+        }
+
+        private int fatSectorLocation(int index) throws IOException {
+            if (index < HEADER_DIFAT_COUNT) {
+                return readInt(head, 0x4C + index * 4);
+            }
+            int perSector = sectorSize / 4 - 1;
+            int difatSector = readInt(head, 0x44);
+            int remaining = index - HEADER_DIFAT_COUNT;
+            while (difatSector >= 0 && remaining >= perSector) {
+                difatSector = readSectorInt(difatSector, perSector * 4);
+                remaining -= perSector;
+            }
+            return difatSector < 0 ? END_OF_CHAIN : readSectorInt(difatSector, remaining * 4);
+        }
+
+        private int readSectorInt(int sectorId, int position) throws IOException {
+            if (source.read(offset(sectorId) + position, intBuffer, 0, 4) < 4) {
+                return END_OF_CHAIN;
+            }
+            return readInt(intBuffer, 0);
+        }
+    }
+
+    /**
+     * OLE2 目录项
+     */
+    private static class Ole2Entry {
+
+        private String name;
+        private int left;
+        private int right;
+        private int child;
+
+        static Ole2Entry of(byte[] sector, int pos) {
+            Ole2Entry entry = new Ole2Entry();
+            int nameLength = Math.min(readUShort(sector, pos + 0x40), 64);
+            entry.name = nameLength >= 2 ? new String(sector, pos, nameLength - 2, StandardCharsets.UTF_16LE) : StrUtil.EMPTY;
+            entry.left = readInt(sector, pos + 0x44);
+            entry.right = readInt(sector, pos + 0x48);
+            entry.child = readInt(sector, pos + 0x4C);
+            return entry;
+        }
+    }
+
+    /**
+     * 随机读取的数据源
+     */
+    private interface Source extends Closeable {
+
+        long length() throws IOException;
+
+        int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    private static class ByteArraySource implements Source {
+
+        private final byte[] data;
+
+        ByteArraySource(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long length() {
+            return data.length;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) {
+            if (position < 0 || position >= data.length) {
+                return 0;
+            }
+            int count = (int) Math.min(length, data.length - position);
+            System.arraycopy(data, (int) position, buffer, offset, count);
+            return count;
+        }
+    }
+
+    private static class FileSource implements Source {
+
+        private final RandomAccessFile file;
+
+        FileSource(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+        }
+
+        @Override
+        public long length() throws IOException {
+            return file.length();
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position < 0 || position >= file.length()) {
+                return 0;
+            }
+            file.seek(position);
+            int total = 0;
+            while (total < length) {
+                int count = file.read(buffer, offset + total, length - total);
+                if (count < 0) {
+                    break;
+                }
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+}
@@ -15,6 +15,8 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +29,13 @@ import java.util.regex.Pattern;
 @Slf4j
 public class FileTypeUtils {
 
+	/**
+	 * 由 {@link FileTypeDetector} 按文件头判定的类型, 其余类型仍交给 Tika
+	 */
+	private static final Set<FileType> DETECTABLE_TYPES = EnumSet.of(FileType.DOC, FileType.PPT, FileType.XLS,
+			FileType.DOCX, FileType.PPTX, FileType.XLSX, FileType.RAR, FileType.ZIP, FileType.PDF, FileType.RTF,
+			FileType.IMAGE, FileType.HTML);
+
 	/**
 	 * 获取类型
 	 *
@@ -78,6 +87,13 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	private static Boolean checkType(File file, FileType fileType){
+		if (DETECTABLE_TYPES.contains(fileType)) {
+			FileType detected = detect(file);
+			// 文件头只识别常见图片格式, 无法识别时(如 svg、ico、psd)仍交给 Tika
+			if (detected != null || fileType != FileType.IMAGE) {
+				return fileType == detected;
+			}
+		}
 		String type = getMimeType(file);
 		Pattern p = Pattern.compile(fileType.getValue());
 		Matcher m = p.matcher(type);
@@ -92,6 +108,13 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	private static Boolean checkType(byte[] file, FileType fileType){
+		if (DETECTABLE_TYPES.contains(fileType)) {
+			FileType detected = detect(file);
+			// 文件头只识别常见图片格式, 无法识别时(如 svg、ico、psd)仍交给 Tika
+			if (detected != null || fileType != FileType.IMAGE) {
+				return fileType == detected;
+			}
+		}
 		String type = getMimeType(file);
 		Pattern p = Pattern.compile(fileType.getValue());
 		Matcher m = p.matcher(type);
@@ -485,7 +508,8 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean isExcel(File file){
-		return isXlsx(file) || isXls(file);
+		FileType fileType = detect(file);
+		return fileType == FileType.XLSX || fileType == FileType.XLS;
 	}
 
 	/**
@@ -495,7 +519,8 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean isExcel(byte[] file){
-		return isXlsx(file) || isXls(file);
+		FileType fileType = detect(file);
+		return fileType == FileType.XLSX || fileType == FileType.XLS;
 	}
 
 	/**
@@ -505,7 +530,8 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean isWord(File file){
-		return isDocx(file) || isDoc(file) || isRtf(file);
+		FileType fileType = detect(file);
+		return fileType == FileType.DOCX || fileType == FileType.DOC || fileType == FileType.RTF;
 	}
 
 	/**
@@ -515,7 +541,8 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean isWord(byte[] file){
-		return isDocx(file) || isDoc(file) || isRtf(file);
+		FileType fileType = detect(file);
+		return fileType == FileType.DOCX || fileType == FileType.DOC || fileType == FileType.RTF;
 	}
 
 	/**
@@ -525,7 +552,8 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean isPpts(File file){
-		return isPpt(file) || isPptx(file);
+		FileType fileType = detect(file);
+		return fileType == FileType.PPT || fileType == FileType.PPTX;
 	}
 
 	/**
@@ -535,7 +563,8 @@ public class FileTypeUtils {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean isPpts(byte[] file){
-		return isPpt(file) || isPptx(file);
+		FileType fileType = detect(file);
+		return fileType == FileType.PPT || fileType == FileType.PPTX;
 	}
 
 	/**
@@ -545,9 +574,23 @@ public class FileTypeUtils {
 	 * @return {@link String}
 	 */
 	public static String getFileType(File file) {
+		FileType fileType = detect(file);
+		if (fileType != null && fileType != FileType.IMAGE) {
+			return fileType.getValue();
+		}
 		return getMimeType(file);
 	}
 
+	/**
+	 * 按文件头探测文件类型
+	 *
+	 * @param file 文件
+	 * @return {@link FileType} 无法识别时返回 null
+	 */
+	public static FileType detect(File file) {
+		return FileTypeDetector.detect(file);
+	}
+
 	/**
 	 * 得到文件类型
 	 *
@@ -555,9 +598,23 @@ public class FileTypeUtils {
 	 * @return {@link String}
 	 */
 	public static String getFileType(byte[] file) {
+		FileType fileType = detect(file);
+		if (fileType != null && fileType != FileType.IMAGE) {
+			return fileType.getValue();
+		}
 		return getMimeType(file);
 	}
 
+	/**
+	 * 按文件头探测文件类型
+	 *
+	 * @param file 文件
+	 * @return {@link FileType} 无法识别时返回 null
+	 */
+	public static FileType detect(byte[] file) {
+		return FileTypeDetector.detect(file);
+	}
+
 
 
 
@@ -1,6 +1,7 @@
 package cn.darkjrong.watermark;
 
 import cn.darkjrong.watermark.domain.FontAttribute;
+import cn.darkjrong.watermark.domain.WatermarkStamp;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.date.DatePattern;
@@ -9,17 +10,23 @@ import cn.hutool.core.img.ImgUtil;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.IORuntimeException;
 import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.imageio.ImageIO;
-import javax.swing.*;
 import java.awt.*;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.*;
 import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * 图片操作工具类
@@ -32,6 +39,75 @@ public class ImageUtils {
 
     private static final String IMAGE_FORMAT = "png";
 
+    /**
+     * 文本水印字体
+     */
+    public static final String FONT_NAME = "宋体";
+
+    /**
+     * 水印图章缓存
+     */
+    private static final StampCache STAMP_CACHE = new StampCache(256);
+
+    /**
+     * 获取水印图章缓存, 可调整容量或查看命中统计
+     *
+     * @return {@link StampCache}
+     */
+    public static StampCache getStampCache() {
+        return STAMP_CACHE;
+    }
+
+    /**
+     * 根据指定的文本创建水印图章, 相同参数直接返回缓存的图章
+     *
+     * @param text     文本
+     * @param color    文字颜色
+     * @param fontSize 字体大小
+     * @param degree   旋转角度
+     * @param alpha    透明度
+     * @return {@link WatermarkStamp} 图章, 不可修改
+     * @throws WatermarkException 水印异常
+     */
+    public static WatermarkStamp createStamp(String text, Color color, Integer fontSize, Float degree, Float alpha) throws WatermarkException {
+        String key = StrUtil.format("text:{}:{}:{}:{}:{}", fontSize, color.getRGB(), degree, alpha, text);
+        return STAMP_CACHE.get(key, () -> WatermarkStamp.of(renderText(text, color, fontSize, degree, alpha)));
+    }
+
+    /**
+     * 根据水印图片创建水印图章, 相同参数直接返回缓存的图章
+     *
+     * @param imageFile 图像文件
+     * @param key       图片缓存键, 为空时按图片内容计算摘要
+     * @param degree    旋转角度
+     * @param alpha     透明度
+     * @return {@link WatermarkStamp} 图章, 不可修改
+     * @throws WatermarkException 水印异常
+     */
+    public static WatermarkStamp createStamp(byte[] imageFile, String key, Float degree, Float alpha) throws WatermarkException {
+        String imageKey = StrUtil.isNotBlank(key) ? key : DigestUtil.md5Hex(imageFile);
+        String cacheKey = StrUtil.format("image:{}:{}:{}", degree, alpha, imageKey);
+        return STAMP_CACHE.get(cacheKey, () -> WatermarkStamp.of(renderImage(imageFile, degree, alpha)));
+    }
+
+    /**
+     * 根据水印图片创建水印图章, 指定缓存键时命中缓存不再读取图片
+     *
+     * @param imageFile 图像文件
+     * @param key       图片缓存键, 为空时按图片内容计算摘要
+     * @param degree    旋转角度
+     * @param alpha     透明度
+     * @return {@link WatermarkStamp} 图章, 不可修改
+     * @throws WatermarkException 水印异常
+     */
+    public static WatermarkStamp createStamp(File imageFile, String key, Float degree, Float alpha) throws WatermarkException {
+        if (StrUtil.isBlank(key)) {
+            return createStamp(FileUtil.readBytes(imageFile), null, degree, alpha);
+        }
+        String cacheKey = StrUtil.format("image:{}:{}:{}", degree, alpha, key);
+        return STAMP_CACHE.get(cacheKey, () -> WatermarkStamp.of(renderImage(FileUtil.readBytes(imageFile), degree, alpha)));
+    }
+
     /**
      * 根据指定的文本创建图片
      *
@@ -65,8 +141,23 @@ public class ImageUtils {
      * @throws WatermarkException 水印异常
      */
     public static byte[] createImageByte(String text, Color color, Integer fontSize, Float degree, Float alpha) throws WatermarkException {
+        return createStamp(text, color, fontSize, degree, alpha).getBytes().clone();
+    }
+
+    /**
+     * 渲染文本图章
+     *
+     * @param text     文本
+     * @param color    文字颜色
+     * @param fontSize 字体大小
+     * @param degree   旋转角度
+     * @param alpha    透明度
+     * @return {@link BufferedImage} 图章图像
+     * @throws WatermarkException 水印异常
+     */
+    private static BufferedImage renderText(String text, Color color, Integer fontSize, Float degree, Float alpha) throws WatermarkException {
 
-        Font font = new Font("宋体", Font.PLAIN, fontSize);
+        Font font = new Font(FONT_NAME, Font.PLAIN, fontSize);
         FontAttribute fontAttribute = getWidthAndHeight(text, font);
 
         int width = fontAttribute.getWidth();
@@ -98,8 +189,7 @@ public class ImageUtils {
         g.dispose();
 
         try {
-            Image rotate = ImgUtil.rotate(image, Convert.toInt(degree));
-            return ImgUtil.toBytes(rotate, ImgUtil.IMAGE_TYPE_PNG);
+            return ImgUtil.toBufferedImage(ImgUtil.rotate(image, Convert.toInt(degree)));
         } catch (Exception e) {
             log.error(String.format("************,createImageByte(),Exception【%s】", e.getMessage()), e);
             throw new WatermarkException(e.getMessage());
@@ -135,21 +225,56 @@ public class ImageUtils {
      * @throws WatermarkException 水印异常
      */
     public static byte[] createImage(byte[] imageFile, Float degree, Float alpha) throws WatermarkException {
-        ByteArrayInputStream alphaInput = null;
-        ByteArrayInputStream rotateInput = null;
+        return createStamp(imageFile, null, degree, alpha).getBytes().clone();
+    }
+
+    /**
+     * 渲染图片图章
+     *
+     * @param imageFile 图像文件
+     * @param degree    旋转角度
+     * @param alpha     透明度
+     * @return {@link BufferedImage} 图章图像
+     * @throws WatermarkException 水印异常
+     */
+    private static BufferedImage renderImage(byte[] imageFile, Float degree, Float alpha) throws WatermarkException {
         try {
-            byte[] rotate = rotate(imageFile, degree);
-            byte[] alphaBytes = transferAlpha(rotateInput = new ByteArrayInputStream(rotate), 1);
-            return changeAlpha(alphaInput = new ByteArrayInputStream(alphaBytes), Convert.toInt(alpha));
+            return createImage(ImgUtil.toImage(imageFile), degree, alpha);
         } catch (Exception e) {
             log.error(String.format("************,createImage(),Exception【%s】", e.getMessage()), e);
             throw new WatermarkException(e.getMessage());
-        } finally {
-            IoUtil.close(rotateInput);
-            IoUtil.close(alphaInput);
         }
     }
 
+    /**
+     * 创建图像
+     * <p>
+     * 旋转、去除背景、调节透明度始终在同一张预乘 ARGB 图像上完成, 中间不做编解码
+     *
+     * @param image  图像
+     * @param degree 旋转角度
+     * @param alpha  透明度
+     * @return {@link BufferedImage} 预乘 ARGB 图像
+     * @throws WatermarkException 水印异常
+     */
+    public static BufferedImage createImage(BufferedImage image, Float degree, Float alpha) throws WatermarkException {
+        BufferedImage result = rotate(image, degree);
+        transferAlpha(result, 1);
+        changeAlpha(result, Convert.toInt(alpha));
+        return result;
+    }
+
+    /**
+     * 获取文本水印的宽度和高度(未旋转), 与栅格化图章的边界一致
+     *
+     * @param text     文本
+     * @param fontSize 字体大小
+     * @return {@link FontAttribute} 文本属性
+     */
+    public static FontAttribute getTextSize(String text, Integer fontSize) {
+        return getWidthAndHeight(text, new Font(FONT_NAME, Font.PLAIN, fontSize));
+    }
+
     /**
      * 获取宽度和高度
      * 获取文本宽度和高度
@@ -212,6 +337,34 @@ public class ImageUtils {
      * @throws WatermarkException 水印异常
      */
     public static byte[] changeAlpha(InputStream inputStream, int alpha) throws WatermarkException {
+        try {
+            BufferedImage image = toArgb(ImageIO.read(inputStream));
+            changeAlpha(image, alpha);
+            return toBytes(image);
+        } catch (IOException e) {
+            log.error(String.format("************,changeAlpha(),Exception【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
+        }
+    }
+
+    /**
+     * 调节图片透明度, 直接修改传入的图像
+     *
+     * @param image 预乘 ARGB 图像
+     * @param alpha 透明度   （0全透明---10不透明）
+     */
+    public static void changeAlpha(BufferedImage image, int alpha) {
+        changeAlpha(image, alpha, Boolean.TRUE);
+    }
+
+    /**
+     * 调节图片透明度, 直接修改传入的图像, 大图按行条带并行处理
+     *
+     * @param image    预乘 ARGB 图像
+     * @param alpha    透明度   （0全透明---10不透明）
+     * @param parallel 是否允许并行
+     */
+    public static void changeAlpha(BufferedImage image, int alpha, boolean parallel) {
 
         //检查透明度是否越界
         if (alpha < 0) {
@@ -219,36 +372,62 @@ public class ImageUtils {
         } else if (alpha > 10) {
             alpha = 10;
         }
+        changeScale(image, alpha * 255 / 10, parallel);
+    }
 
-        ByteArrayOutputStream out = null;
-        try {
-            BufferedImage image = ImageIO.read(inputStream);
-            int weight = image.getWidth();
-            int height = image.getHeight();
-
-            BufferedImage output = new BufferedImage(weight, height, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2 = output.createGraphics();
-            output = g2.getDeviceConfiguration().createCompatibleImage(weight, height, Transparency.TRANSLUCENT);
-            g2.dispose();
-            g2 = output.createGraphics();
-
-            //调制透明度
-            for (int j1 = output.getMinY(); j1 < output.getHeight(); j1++) {
-                for (int j2 = output.getMinX(); j2 < output.getWidth(); j2++) {
-                    int rgb = output.getRGB(j2, j1);
-                    rgb = ((alpha * 255 / 10) << 24) | (rgb & 0x00ffffff);
-                    output.setRGB(j2, j1, rgb);
-                }
+    /**
+     * 按不透明度调节图片透明度, 直接修改传入的图像, 不按十分之一取整
+     *
+     * @param image   预乘 ARGB 图像
+     * @param opacity 不透明度(0全透明---1不透明)
+     */
+    public static void changeOpacity(BufferedImage image, double opacity) {
+        changeScale(image, (int) Math.round(Math.min(1D, Math.max(0D, opacity)) * 255), Boolean.TRUE);
+    }
+
+    /**
+     * 按透明度系数调节图片透明度, 大图按行条带并行处理
+     *
+     * @param image    图像
+     * @param scale    透明度系数(0-255)
+     * @param parallel 是否允许并行
+     */
+    private static void changeScale(BufferedImage image, int scale, boolean parallel) {
+        int width = image.getWidth();
+        int[] data = image.getColorModel().hasAlpha() ? getPixels(image) : null;
+        if (data != null) {
+            boolean premultiplied = image.isAlphaPremultiplied();
+            ParallelUtils.forEachBand(width, image.getHeight(), parallel,
+                    (fromRow, toRow) -> changeAlpha(data, fromRow * width, toRow * width, scale, premultiplied));
+        } else {
+            forEachRow(image, row -> changeAlpha(row, 0, row.length, scale, false));
+        }
+    }
+
+    /**
+     * 透明度调制内核, 预乘像素四个分量同比缩放, 非预乘像素只缩放 alpha
+     *
+     * @param data          像素数组
+     * @param from          起始下标(含)
+     * @param to            结束下标(不含)
+     * @param scale         透明度系数(0-255)
+     * @param premultiplied 是否预乘
+     */
+    private static void changeAlpha(int[] data, int from, int to, int scale, boolean premultiplied) {
+        if (premultiplied) {
+            for (int i = from; i < to; i++) {
+                int p = data[i];
+                int a = (p >>> 24) * scale / 255;
+                int r = ((p >> 16) & 0xff) * scale / 255;
+                int g = ((p >> 8) & 0xff) * scale / 255;
+                int b = (p & 0xff) * scale / 255;
+                data[i] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                int p = data[i];
+                data[i] = (((p >>> 24) * scale / 255) << 24) | (p & 0x00ffffff);
             }
-            g2.setComposite(AlphaComposite.SrcIn);
-            g2.drawImage(image, 0, 0, weight, height, null);
-            g2.dispose();
-            out = new ByteArrayOutputStream();
-            ImageIO.write(output, IMAGE_FORMAT, out);
-            return out.toByteArray();
-        } catch (IOException e) {
-            log.error(String.format("************,changeAlpha(),Exception【%s】", e.getMessage()), e);
-            throw new WatermarkException(e.getMessage());
         }
     }
 
@@ -278,33 +457,41 @@ public class ImageUtils {
      * @throws WatermarkException 水印异常
      */
     public static byte[] rotate(byte[] srcFile, Float angel) throws WatermarkException {
-        ByteArrayOutputStream out = null;
         ByteArrayInputStream in = null;
         try {
-            out = new ByteArrayOutputStream(16 * 1024);
             in = new ByteArrayInputStream(srcFile);
-            Image src = ImageIO.read(in);
-            int srcWidth = src.getWidth(null);
-            int srcHeight = src.getHeight(null);
-            Rectangle rectDes = calcRotatedSize(new Rectangle(new Dimension(srcWidth, srcHeight)), angel);
-
-            BufferedImage res = new BufferedImage(rectDes.width, rectDes.height, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2 = res.createGraphics();
-            g2.translate((rectDes.width - srcWidth) / 2, (rectDes.height - srcHeight) / 2);
-            g2.rotate(Math.toRadians(angel), srcWidth / 2.0, srcHeight / 2.0);
-            g2.drawImage(src, null, null);
-            g2.dispose();
-            ImageIO.write(res, IMAGE_FORMAT, out);
-            return out.toByteArray();
+            return toBytes(rotate(ImageIO.read(in), angel));
         } catch (IOException e) {
             log.error(String.format("************,rotate(),Exception【%s】", e.getMessage()), e);
             throw new WatermarkException(e.getMessage());
         } finally {
-            IoUtil.close(out);
             IoUtil.close(in);
         }
     }
 
+    /**
+     * 图片旋转, 旋转后空出的区域为不透明黑色
+     *
+     * @param src   原始图
+     * @param angel 旋转角度
+     * @return {@link BufferedImage} 预乘 ARGB 图像
+     */
+    public static BufferedImage rotate(BufferedImage src, Float angel) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        Rectangle rectDes = calcRotatedSize(new Rectangle(new Dimension(srcWidth, srcHeight)), angel);
+
+        BufferedImage res = new BufferedImage(rectDes.width, rectDes.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2 = res.createGraphics();
+        g2.setColor(Color.BLACK);
+        g2.fillRect(0, 0, rectDes.width, rectDes.height);
+        g2.translate((rectDes.width - srcWidth) / 2, (rectDes.height - srcHeight) / 2);
+        g2.rotate(Math.toRadians(angel), srcWidth / 2.0, srcHeight / 2.0);
+        g2.drawImage(src, null, null);
+        g2.dispose();
+        return res;
+    }
+
     /**
      * 计算旋转后的图片
      *
@@ -344,56 +531,229 @@ public class ImageUtils {
      * @throws WatermarkException 水印异常
      */
     public static byte[] transferAlpha(InputStream input, int color) throws WatermarkException {
-
-        ByteArrayOutputStream out = null;
         try {
-            out = new ByteArrayOutputStream(16 * 1024);
-            ImageIcon imageIcon = new ImageIcon(ImageIO.read(input));
-            BufferedImage bufferedImage = new BufferedImage(
-                    imageIcon.getIconWidth(), imageIcon.getIconHeight(), BufferedImage.TYPE_4BYTE_ABGR);
-            Graphics2D g2D = (Graphics2D) bufferedImage.getGraphics();
-            g2D.drawImage(imageIcon.getImage(), 0, 0, imageIcon.getImageObserver());
-            int alpha = 0;
-            for (int j1 = bufferedImage.getMinY(); j1 < bufferedImage.getHeight(); j1++) {
-                for (int j2 = bufferedImage.getMinX(); j2 < bufferedImage.getWidth(); j2++) {
-                    int rgb = bufferedImage.getRGB(j2, j1);
-                    if (checkColor(rgb, 16, color)) {
-                        rgb = ((alpha + 1) << 24) | (rgb & 0x00ffffff);
-                    }
-                    bufferedImage.setRGB(j2, j1, rgb);
-                }
-            }
-
-            g2D.drawImage(bufferedImage, 0, 0, imageIcon.getImageObserver());
-            g2D.dispose();
-            ImageIO.write(bufferedImage, IMAGE_FORMAT, out);
-            return out.toByteArray();
+            BufferedImage image = toArgb(ImageIO.read(input));
+            transferAlpha(image, color);
+            return toBytes(image);
         } catch (IOException e) {
             log.error(String.format("************,transferAlpha(),Exception【%s】", e.getMessage()), e);
             throw new WatermarkException(e.getMessage());
-        }finally {
-            IoUtil.close(out);
         }
     }
 
     /**
-     * 检查颜色是否为 白色 或者 黑色阈值范围
+     * 对图片中的 黑色或白色进行透明化处理, 直接修改传入的图像
      *
-     * @param rgb   颜色值
+     * @param image 预乘 ARGB 图像
      * @param color 0:白色 1:黑色
-     * @return 检查结果
      */
-    private static boolean checkColor(int rgb, int offset, int color) {
-        int R = (rgb & 0xff0000) >> 16;
-        int G = (rgb & 0xff00) >> 8;
-        int B = (rgb & 0xff);
+    public static void transferAlpha(BufferedImage image, int color) {
+        transferAlpha(image, color, Boolean.TRUE);
+    }
 
-        if (color == 0) {
-            return ((255 - R) <= offset) && ((255 - G) <= offset) && ((255 - B) <= offset);
+    /**
+     * 对图片中的 黑色或白色进行透明化处理, 直接修改传入的图像, 大图按行条带并行处理
+     *
+     * @param image    预乘 ARGB 图像
+     * @param color    0:白色 1:黑色
+     * @param parallel 是否允许并行
+     */
+    public static void transferAlpha(BufferedImage image, int color, boolean parallel) {
+        int width = image.getWidth();
+        int[] data = image.getColorModel().hasAlpha() ? getPixels(image) : null;
+        if (data != null) {
+            boolean premultiplied = image.isAlphaPremultiplied();
+            ParallelUtils.forEachBand(width, image.getHeight(), parallel,
+                    (fromRow, toRow) -> transferAlpha(data, fromRow * width, toRow * width, color, premultiplied));
         } else {
-            return ((R <= offset) && (G <= offset) && (B <= offset));
+            forEachRow(image, row -> transferAlpha(row, 0, row.length, color, false));
         }
     }
 
+    /**
+     * 去背景内核, 命中阈值的像素 alpha 置为 1; 预乘像素按 c * 255 与阈值 * a 比较, 避免逐像素除法
+     *
+     * @param data          像素数组
+     * @param from          起始下标(含)
+     * @param to            结束下标(不含)
+     * @param color         0:白色 1:黑色
+     * @param premultiplied 是否预乘
+     */
+    private static void transferAlpha(int[] data, int from, int to, int color, boolean premultiplied) {
+        int offset = 16;
+        for (int i = from; i < to; i++) {
+            int p = data[i];
+            int a = premultiplied ? p >>> 24 : 255;
+            int r = ((p >> 16) & 0xff) * 255;
+            int g = ((p >> 8) & 0xff) * 255;
+            int b = (p & 0xff) * 255;
+            boolean hit;
+            if (color == 0) {
+                int min = (255 - offset) * a;
+                hit = r >= min && g >= min && b >= min;
+            } else {
+                int max = offset * a;
+                hit = r <= max && g <= max && b <= max;
+            }
+            if (hit) {
+                data[i] = premultiplied ? 0x01000000 : (0x01000000 | (p & 0x00ffffff));
+            }
+        }
+    }
+
+    /**
+     * 将图章按 src-over 叠加到目标图像的指定位置, 直接修改目标图像, 大图按行条带并行处理
+     *
+     * @param target   目标图像
+     * @param stamp    图章
+     * @param points   图章左上角坐标
+     * @param parallel 是否允许并行
+     */
+    public static void overlay(BufferedImage target, BufferedImage stamp, List<Point> points, boolean parallel) {
+        int type = target.getType();
+        int[] data = type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB_PRE ? getPixels(target) : null;
+        if (data == null) {
+            Graphics2D g2D = target.createGraphics();
+            for (Point point : points) {
+                g2D.drawImage(stamp, point.x, point.y, null);
+            }
+            g2D.dispose();
+            return;
+        }
+
+        BufferedImage source = stamp.getType() == BufferedImage.TYPE_INT_ARGB_PRE ? stamp : null;
+        int[] stampData = source == null ? null : getPixels(source);
+        if (stampData == null) {
+            source = toArgb(stamp);
+            stampData = getPixels(source);
+        }
+        int[] src = stampData;
+        int width = target.getWidth();
+        int height = target.getHeight();
+        int stampWidth = source.getWidth();
+        int stampHeight = source.getHeight();
+        boolean opaque = type == BufferedImage.TYPE_INT_RGB;
+        ParallelUtils.forEachBand(width, height, parallel, (fromRow, toRow) -> {
+            for (Point point : points) {
+                int y0 = Math.max(point.y, fromRow);
+                int y1 = Math.min(point.y + stampHeight, toRow);
+                int x0 = Math.max(point.x, 0);
+                int x1 = Math.min(point.x + stampWidth, width);
+                for (int y = y0; y < y1; y++) {
+                    int dstIndex = y * width + x0;
+                    int srcIndex = (y - point.y) * stampWidth + (x0 - point.x);
+                    overlay(data, dstIndex, src, srcIndex, x1 - x0, opaque);
+                }
+            }
+        });
+    }
+
+    /**
+     * src-over 内核, 源为预乘 ARGB, 目标为不透明 RGB 或预乘 ARGB
+     *
+     * @param dst      目标像素数组
+     * @param dstIndex 目标起始下标
+     * @param src      源像素数组
+     * @param srcIndex 源起始下标
+     * @param length   像素数
+     * @param opaque   目标是否不透明
+     */
+    private static void overlay(int[] dst, int dstIndex, int[] src, int srcIndex, int length, boolean opaque) {
+        for (int i = 0; i < length; i++) {
+            int s = src[srcIndex + i];
+            int sa = s >>> 24;
+            if (sa == 0) {
+                continue;
+            }
+            int d = dst[dstIndex + i];
+            int inv = 255 - sa;
+            int a = opaque ? 255 : sa + div255((d >>> 24) * inv);
+            int r = ((s >> 16) & 0xff) + div255(((d >> 16) & 0xff) * inv);
+            int g = ((s >> 8) & 0xff) + div255(((d >> 8) & 0xff) * inv);
+            int b = (s & 0xff) + div255((d & 0xff) * inv);
+            dst[dstIndex + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * 除以 255 并四舍五入
+     *
+     * @param value 值(0 - 255 * 255)
+     * @return int
+     */
+    private static int div255(int value) {
+        value += 128;
+        return (value + (value >> 8)) >> 8;
+    }
+
+    /**
+     * 获取 int RGB/ARGB 图像的底层像素数组, 布局不连续或类型不符时返回 null
+     *
+     * @param image 图像
+     * @return {@link int[]}
+     */
+    private static int[] getPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB
+                && type != BufferedImage.TYPE_INT_ARGB_PRE) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !(raster.getDataBuffer() instanceof DataBufferInt)) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (sampleModel.getScanlineStride() != image.getWidth() || buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+            return null;
+        }
+        return buffer.getData();
+    }
+
+    /**
+     * 按行读取非预乘 ARGB 像素, 处理后写回, 用于无法直接访问底层数组的图像
+     *
+     * @param image  图像
+     * @param kernel 行处理
+     */
+    private static void forEachRow(BufferedImage image, Consumer<int[]> kernel) {
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            kernel.accept(row);
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    /**
+     * 转换为预乘 ARGB 图像
+     *
+     * @param image 图像
+     * @return {@link BufferedImage}
+     */
+    private static BufferedImage toArgb(BufferedImage image) {
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2D = result.createGraphics();
+        g2D.drawImage(image, 0, 0, null);
+        g2D.dispose();
+        return result;
+    }
+
+    /**
+     * 编码为png
+     *
+     * @param image 图像
+     * @return {@link byte[]} 图像字节数组
+     * @throws IOException IO异常
+     */
+    private static byte[] toBytes(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        ImageIO.write(image, IMAGE_FORMAT, out);
+        return out.toByteArray();
+    }
+
 
 }
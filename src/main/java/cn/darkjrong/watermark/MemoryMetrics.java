@@ -0,0 +1,79 @@
+package cn.darkjrong.watermark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存统计
+ * <p>
+ * 按窗口处理大文件时, 每个窗口结束后采样一次已用堆内存, 记录处理的文档数、页数、窗口数与采样到的堆内存峰值.
+ * 已用堆内存为整个 jvm 的用量, 并发处理时包含其他任务的占用
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class MemoryMetrics {
+
+    private final AtomicLong documentCount = new AtomicLong();
+    private final AtomicLong pageCount = new AtomicLong();
+    private final AtomicLong windowCount = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    /**
+     * 获取当前已用堆内存
+     *
+     * @return long 字节数
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 记录一个窗口, 并采样已用堆内存
+     *
+     * @param pages 窗口页数
+     * @return long 当前已用堆内存
+     */
+    public long recordWindow(int pages) {
+        windowCount.incrementAndGet();
+        pageCount.addAndGet(pages);
+        long used = usedHeap();
+        peakHeap.accumulateAndGet(used, Math::max);
+        return used;
+    }
+
+    /**
+     * 记录一个文档
+     */
+    public void recordDocument() {
+        documentCount.incrementAndGet();
+    }
+
+    /**
+     * 清空统计
+     */
+    public void reset() {
+        documentCount.set(0);
+        pageCount.set(0);
+        windowCount.set(0);
+        peakHeap.set(0);
+    }
+
+    public long getDocumentCount() {
+        return documentCount.get();
+    }
+
+    public long getPageCount() {
+        return pageCount.get();
+    }
+
+    public long getWindowCount() {
+        return windowCount.get();
+    }
+
+    public long getPeakHeap() {
+        return peakHeap.get();
+    }
+
+
+}
@@ -0,0 +1,236 @@
+package cn.darkjrong.watermark;
+
+import cn.hutool.core.util.ObjectUtil;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntConsumer;
+
+/**
+ * 并行处理工具类
+ * <p>
+ * 将大图的像素处理按行切分为条带, 在独立的 {@link ForkJoinPool} 中并行执行.
+ * 像素数低于阈值、全局关闭或单个请求关闭时按顺序在调用线程执行;
+ * 调用方已在并发处理大量任务时, 可通过 {@link #setEnabled(boolean)} 全局关闭, 避免线程争抢
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class ParallelUtils {
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * 是否启用并行
+     */
+    private static volatile boolean enabled = Boolean.TRUE;
+
+    /**
+     * 并行度
+     */
+    private static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 启用并行的最小像素数
+     */
+    private static volatile long threshold = 4L * 1024 * 1024;
+
+    /**
+     * 单个条带的最小像素数
+     */
+    private static volatile long bandSize = 256L * 1024;
+
+    private static volatile ForkJoinPool pool;
+
+    /**
+     * 条带任务
+     */
+    @FunctionalInterface
+    public interface BandTask {
+
+        /**
+         * 处理指定行区间
+         *
+         * @param fromRow 起始行(含)
+         * @param toRow   结束行(不含)
+         */
+        void apply(int fromRow, int toRow);
+    }
+
+    /**
+     * 按行条带执行任务
+     *
+     * @param width    宽度
+     * @param height   高度
+     * @param parallel 本次是否允许并行
+     * @param task     条带任务
+     */
+    public static void forEachBand(int width, int height, boolean parallel, BandTask task) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (!parallel || !enabled || parallelism <= 1 || (long) width * height < threshold) {
+            task.apply(0, height);
+            return;
+        }
+        int minRows = (int) Math.max(1, bandSize / width);
+        invoke(new BandAction(task, 0, height, minRows), task, height);
+    }
+
+    /**
+     * 逐个下标执行任务, 不受像素阈值限制, 适用于页面区间等粗粒度任务
+     *
+     * @param count    任务数
+     * @param parallel 本次是否允许并行
+     * @param task     任务
+     */
+    public static void forEachIndex(int count, boolean parallel, IntConsumer task) {
+        if (count <= 0) {
+            return;
+        }
+        BandTask bandTask = (from, to) -> {
+            for (int i = from; i < to; i++) {
+                task.accept(i);
+            }
+        };
+        if (!parallel || !enabled || parallelism <= 1 || count == 1) {
+            bandTask.apply(0, count);
+            return;
+        }
+        invoke(new BandAction(bandTask, 0, count, 1), bandTask, count);
+    }
+
+    /**
+     * 在线程池中执行, 已处于本线程池中时直接在当前线程分治执行
+     *
+     * @param action 分治任务
+     * @param task   顺序执行时的任务
+     * @param count  行数或任务数
+     */
+    private static void invoke(BandAction action, BandTask task, int count) {
+        ForkJoinPool forkJoinPool = getPool();
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == forkJoinPool) {
+            action.invoke();
+            return;
+        }
+        try {
+            forkJoinPool.invoke(action);
+        } catch (RejectedExecutionException e) {
+            // 并行度调整期间线程池已关闭, 退回调用线程执行
+            task.apply(0, count);
+        }
+    }
+
+    /**
+     * 获取线程池, 首次使用时创建
+     *
+     * @return {@link ForkJoinPool}
+     */
+    public static ForkJoinPool getPool() {
+        ForkJoinPool result = pool;
+        if (ObjectUtil.isNull(result)) {
+            synchronized (LOCK) {
+                result = pool;
+                if (ObjectUtil.isNull(result)) {
+                    result = new ForkJoinPool(Math.max(1, parallelism));
+                    pool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 全局启用或关闭并行
+     *
+     * @param enabled 是否启用
+     */
+    public static void setEnabled(boolean enabled) {
+        ParallelUtils.enabled = enabled;
+    }
+
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * 设置并行度, 已创建的线程池在当前任务结束后关闭并按新并行度重建
+     *
+     * @param parallelism 并行度
+     */
+    public static void setParallelism(int parallelism) {
+        synchronized (LOCK) {
+            ParallelUtils.parallelism = Math.max(1, parallelism);
+            ForkJoinPool old = pool;
+            pool = null;
+            if (ObjectUtil.isNotNull(old)) {
+                old.shutdown();
+            }
+        }
+    }
+
+    public static long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * 设置启用并行的最小像素数
+     *
+     * @param threshold 像素数
+     */
+    public static void setThreshold(long threshold) {
+        ParallelUtils.threshold = Math.max(0, threshold);
+    }
+
+    public static long getBandSize() {
+        return bandSize;
+    }
+
+    /**
+     * 设置单个条带的最小像素数
+     *
+     * @param bandSize 像素数
+     */
+    public static void setBandSize(long bandSize) {
+        ParallelUtils.bandSize = Math.max(1, bandSize);
+    }
+
+    /**
+     * 二分行区间, 直到条带行数不超过最小行数
+     */
+    private static class BandAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient BandTask task;
+        private final int fromRow;
+        private final int toRow;
+        private final int minRows;
+
+        private BandAction(BandTask task, int fromRow, int toRow, int minRows) {
+            this.task = task;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= minRows) {
+                task.apply(fromRow, toRow);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new BandAction(task, fromRow, middle, minRows),
+                    new BandAction(task, middle, toRow, minRows));
+        }
+    }
+
+
+}
@@ -0,0 +1,119 @@
+package cn.darkjrong.watermark;
+
+import cn.darkjrong.watermark.domain.WatermarkStamp;
+import cn.hutool.core.util.ObjectUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 水印图章缓存
+ * <p>
+ * 按水印参数(文本/字体/颜色/角度/透明度, 或图片摘要)缓存已渲染的图章, 超出容量时淘汰最久未使用的图章.
+ * 未命中时在锁外渲染, 并发未命中同一键时可能重复渲染, 以先写入者为准
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class StampCache {
+
+    private final LinkedHashMap<String, WatermarkStamp> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private volatile int maximumSize;
+
+    public StampCache(int maximumSize) {
+        this.maximumSize = Math.max(0, maximumSize);
+        this.cache = new LinkedHashMap<String, WatermarkStamp>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WatermarkStamp> eldest) {
+                if (size() > StampCache.this.maximumSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 获取图章, 未命中时渲染并放入缓存
+     *
+     * @param key    缓存键
+     * @param loader 渲染器
+     * @return {@link WatermarkStamp}
+     */
+    public WatermarkStamp get(String key, Supplier<WatermarkStamp> loader) {
+        WatermarkStamp stamp;
+        synchronized (cache) {
+            stamp = cache.get(key);
+        }
+        if (ObjectUtil.isNotNull(stamp)) {
+            hitCount.incrementAndGet();
+            return stamp;
+        }
+        missCount.incrementAndGet();
+        stamp = loader.get();
+        if (maximumSize > 0) {
+            synchronized (cache) {
+                WatermarkStamp existing = cache.putIfAbsent(key, stamp);
+                if (ObjectUtil.isNotNull(existing)) {
+                    stamp = existing;
+                }
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * 设置最大容量, 为 0 时不缓存
+     *
+     * @param maximumSize 最大容量
+     */
+    public void setMaximumSize(int maximumSize) {
+        synchronized (cache) {
+            this.maximumSize = Math.max(0, maximumSize);
+            while (cache.size() > this.maximumSize) {
+                String eldest = cache.keySet().iterator().next();
+                cache.remove(eldest);
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+
+}
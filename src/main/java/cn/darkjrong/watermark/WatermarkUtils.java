@@ -3,6 +3,8 @@ package cn.darkjrong.watermark;
 import cn.darkjrong.watermark.domain.ImageFile;
 import cn.darkjrong.watermark.domain.SrcFile;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.domain.WatermarkStamp;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.darkjrong.watermark.factory.*;
 import cn.hutool.core.io.FileUtil;
@@ -12,8 +14,7 @@ import cn.hutool.core.util.StrUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * 水印工具类
@@ -24,15 +25,17 @@ import java.util.List;
 @Slf4j
 public class WatermarkUtils {
 
-    private static final List<WatermarkProcessor> processors = new ArrayList<>();
+    private static final Object LOCK = new Object();
 
-    static {
-        processors.add(new ExcelWatermarkProcessor());
-        processors.add(new ImageWatermarkProcessor());
-        processors.add(new PdfWatermarkProcessor());
-        processors.add(new PowerPointWatermarkProcessor());
-        processors.add(new WordWatermarkProcessor());
-    }
+    /**
+     * 处理器注册表, 注册时整体替换(写时复制), 查找时无锁
+     */
+    private static volatile Registry registry = Registry.of(Arrays.asList(
+            new ExcelWatermarkProcessor(),
+            new ImageWatermarkProcessor(),
+            new PdfWatermarkProcessor(),
+            new PowerPointWatermarkProcessor(),
+            new WordWatermarkProcessor()));
 
     /**
      * 添加处理器
@@ -41,7 +44,11 @@ public class WatermarkUtils {
      */
     public static void addProcessor(WatermarkProcessor processor) {
         if (ObjectUtil.isNotNull(processor)) {
-            processors.add(processor);
+            synchronized (LOCK) {
+                List<WatermarkProcessor> processors = new ArrayList<>(registry.processors);
+                processors.add(processor);
+                registry = Registry.of(processors);
+            }
         }
     }
 
@@ -54,7 +61,9 @@ public class WatermarkUtils {
      */
     public static void addWatermark(WatermarkParam watermarkParam, File outputFile) throws WatermarkException {
         LicenseUtils.verificationLicense();
-        FileUtil.writeBytes(addWatermark(watermarkParam), outputFile);
+        SrcFile file = getFile(watermarkParam.getFile());
+        WatermarkProcessor processor = getProcessor(file);
+        processor.addWatermark(getParam(watermarkParam, file, processor), outputFile);
     }
 
     /**
@@ -66,90 +75,158 @@ public class WatermarkUtils {
     public static byte[] addWatermark(WatermarkParam watermarkParam) throws WatermarkException {
         LicenseUtils.verificationLicense();
         SrcFile file = getFile(watermarkParam.getFile());
-        WatermarkProcessor processor = processors.stream()
-                .filter(a -> a.supportType(file.getBytes()))
-                .findAny()
-                .orElse(null);
+        WatermarkProcessor processor = getProcessor(file);
+        return processor.addWatermark(getParam(watermarkParam, file, processor));
+    }
+
+    private static WatermarkProcessor getProcessor(SrcFile file) throws WatermarkException {
+        WatermarkProcessor processor = registry.lookup(file);
         if (ObjectUtil.isNull(processor)) {
-            String fileType = FileTypeUtils.getFileType(file.getBytes());
-            log.error("*************,The watermark does not support the file format is: {}", fileType);
-            throw new WatermarkException("不支持文件格式为 " + fileType + " 的水印处理");
+            String mimeType = FileTypeUtils.getFileType(file.getBytes());
+            log.error("*************,The watermark does not support the file format is: {}", mimeType);
+            throw new WatermarkException("不支持文件格式为 " + mimeType + " 的水印处理");
         }
-        ImageFile imageFile = handlerWatermarkFile(watermarkParam);
-        WatermarkParam param = WatermarkParam.builder()
-                .alpha(watermarkParam.getAlpha())
-                .fontSize(watermarkParam.getFontSize())
-                .bespread(watermarkParam.getBespread())
-                .color(watermarkParam.getColor())
-                .xMove(watermarkParam.getXMove())
-                .yMove(watermarkParam.getYMove())
-                .degree(watermarkParam.getDegree())
+        return processor;
+    }
+
+    private static WatermarkParam getParam(WatermarkParam watermarkParam, SrcFile file, WatermarkProcessor processor) throws WatermarkException {
+        ImageFile imageFile = handlerWatermarkFile(watermarkParam, processor);
+        return watermarkParam.toBuilder()
                 .imageFile(imageFile)
                 .file(file)
                 .build();
-        return processor.addWatermark(param);
     }
 
     /**
      * 处理程序水印文件
      *
      * @param watermarkParam 水印参数
+     * @param processor      处理器
      * @return {@link ImageFile}
      * @throws WatermarkException 水印异常
      */
-    private static ImageFile handlerWatermarkFile(WatermarkParam watermarkParam) throws WatermarkException {
-        byte[] imageFile = getImageFile(watermarkParam.getImageFile(), watermarkParam);
-        return ImageFile.builder().bytes(imageFile).build();
+    private static ImageFile handlerWatermarkFile(WatermarkParam watermarkParam, WatermarkProcessor processor) throws WatermarkException {
+        String text = watermarkParam.getImageFile().getText();
+        if (StrUtil.isNotBlank(text) && Boolean.TRUE.equals(processor.supportText())) {
+            // 处理器直接绘制文本, 无需栅格化
+            return ImageFile.builder().text(text).build();
+        }
+        WatermarkStamp stamp = getStamp(watermarkParam.getImageFile(), watermarkParam);
+        return ImageFile.builder().stamp(stamp).build();
     }
 
+    /**
+     * 规范化原文件; 只指定文件时保留文件路径, 字节数组在首次使用时读取, 便于处理器直接基于文件处理
+     *
+     * @param srcFile 原文件
+     * @return {@link SrcFile}
+     */
     private static SrcFile getFile(SrcFile srcFile) {
-        byte[] byteFile = null;
         File file = srcFile.getFile();
-        byte[] bytes = srcFile.getBytes();
-        if (FileUtil.exist(file)) {
-            try {
-                byteFile = FileUtil.readBytes(file);
-            } catch (Exception e) {
-                log.error("****************,getFile(),文件【{}】读取异常 {}", file.getName(), e.getMessage());
-            }
+        if (srcFile.hasBytes()) {
+            byte[] bytes = srcFile.getBytes();
+            return SrcFile.builder().bytes(bytes).fileType(FileTypeUtils.detect(bytes)).build();
         }
-        if (ArrayUtil.isNotEmpty(bytes)) {
-            byteFile = bytes;
+        if (FileUtil.exist(file) && FileUtil.size(file) > 0) {
+            return SrcFile.builder().file(file).fileType(FileTypeUtils.detect(file)).build();
         }
 
-        if (ArrayUtil.isEmpty(byteFile)) {
-            log.error("************,getFile(),待加水印的文件不存在或者文件内容为空,请检查");
-            throw new WatermarkException("待加水印的文件不存在或者文件内容为空,请检查");
-        }
-        return SrcFile.builder().bytes(byteFile).build();
+        log.error("************,getFile(),待加水印的文件不存在或者文件内容为空,请检查");
+        throw new WatermarkException("待加水印的文件不存在或者文件内容为空,请检查");
     }
 
-    private static byte[] getImageFile(ImageFile imageFile, WatermarkParam watermarkParam) {
-        byte[] byteFile = null;
+    private static WatermarkStamp getStamp(ImageFile imageFile, WatermarkParam watermarkParam) {
+        WatermarkStamp stamp = null;
         File file = imageFile.getFile();
         byte[] bytes = imageFile.getBytes();
         String text = imageFile.getText();
 
         if (FileUtil.exist(file)) {
             try {
-                byteFile = ImageUtils.createImage(FileUtil.readBytes(file), watermarkParam.getDegree(), watermarkParam.getAlpha());
+                stamp = ImageUtils.createStamp(file, imageFile.getKey(),
+                        watermarkParam.getDegree(), watermarkParam.getAlpha());
             } catch (Exception e) {
                 log.error("****************,getImageFile(),文件【{}】读取异常 {}", file.getName(), e.getMessage());
             }
         }
         if (ArrayUtil.isNotEmpty(bytes)) {
-            byteFile = bytes;
+            stamp = imageFile.getStamp();
         }
         if (StrUtil.isNotBlank(text)) {
-            byteFile = ImageUtils.createImageByte(text, watermarkParam.getColor(),
+            stamp = ImageUtils.createStamp(text, watermarkParam.getColor(),
                     watermarkParam.getFontSize(), watermarkParam.getDegree(), watermarkParam.getAlpha());
         }
 
-        if (ArrayUtil.isEmpty(byteFile)) {
+        if (ObjectUtil.isNull(stamp)) {
             log.error("************,getImageFile(),水印文件的文件为空,请检查");
             throw new WatermarkException("水印文件的文件为空,请检查");
         }
-        return byteFile;
+        return stamp;
+    }
+
+    /**
+     * 处理器注册表快照
+     * <p>
+     * 按文件类型建立分派表, 探测一次后即可直接命中处理器; 未声明 {@link WatermarkProcessor#supportType(FileType)}
+     * 的自定义处理器仍按 {@link WatermarkProcessor#supportType(byte[])} 逐个判断, 文件头无法识别类型时全部处理器按优先级逐个判断
+     */
+    private static class Registry {
+
+        /**
+         * 按优先级排序的全部处理器
+         */
+        private final List<WatermarkProcessor> processors;
+
+        /**
+         * 文件类型分派表
+         */
+        private final Map<FileType, WatermarkProcessor> dispatch;
+
+        /**
+         * 只能按字节判断的处理器
+         */
+        private final List<WatermarkProcessor> probes;
+
+        private Registry(List<WatermarkProcessor> processors, Map<FileType, WatermarkProcessor> dispatch, List<WatermarkProcessor> probes) {
+            this.processors = processors;
+            this.dispatch = dispatch;
+            this.probes = probes;
+        }
+
+        private static Registry of(List<WatermarkProcessor> processors) {
+            List<WatermarkProcessor> sorted = new ArrayList<>(processors);
+            sorted.sort(Comparator.comparing(WatermarkProcessor::getOrder));
+
+            Map<FileType, WatermarkProcessor> dispatch = new EnumMap<>(FileType.class);
+            List<WatermarkProcessor> probes = new ArrayList<>();
+            for (WatermarkProcessor processor : sorted) {
+                boolean typed = false;
+                for (FileType fileType : FileType.values()) {
+                    if (Boolean.TRUE.equals(processor.supportType(fileType))) {
+                        dispatch.putIfAbsent(fileType, processor);
+                        typed = true;
+                    }
+                }
+                if (!typed) {
+                    probes.add(processor);
+                }
+            }
+            return new Registry(Collections.unmodifiableList(sorted), dispatch, Collections.unmodifiableList(probes));
+        }
+
+        private WatermarkProcessor lookup(SrcFile file) {
+            FileType fileType = file.getFileType();
+            WatermarkProcessor processor = ObjectUtil.isNull(fileType) ? null : dispatch.get(fileType);
+            if (ObjectUtil.isNotNull(processor)) {
+                return processor;
+            }
+            // 文件头无法识别类型时, 已声明类型的处理器也按字节再判断一次(如图片处理器回退到 Tika)
+            List<WatermarkProcessor> candidates = ObjectUtil.isNull(fileType) ? processors : probes;
+            return candidates.stream()
+                    .filter(a -> Boolean.TRUE.equals(a.supportType(file.getBytes())))
+                    .findFirst()
+                    .orElse(null);
+        }
     }
 
 
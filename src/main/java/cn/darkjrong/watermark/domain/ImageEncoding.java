@@ -0,0 +1,71 @@
+package cn.darkjrong.watermark.domain;
+
+import cn.darkjrong.watermark.enums.EncodePreset;
+import cn.hutool.core.util.ObjectUtil;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * 图片编码参数
+ * <p>
+ * 未设置的选项取预设值; png 的行过滤方式由 ImageIO 编码器按行自适应选择, 不支持指定
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+@Getter
+@Builder
+public class ImageEncoding {
+
+    /**
+     * 输出格式(如 jpeg, png), 为空时与原图格式一致
+     */
+    private String format;
+
+    /**
+     * 编码预设
+     */
+    @Builder.Default
+    private EncodePreset preset = EncodePreset.BALANCED;
+
+    /**
+     * jpeg 质量(0-1)
+     */
+    private Float quality;
+
+    /**
+     * jpeg 是否渐进式
+     */
+    private Boolean progressive;
+
+    /**
+     * jpeg 是否色度抽样(4:2:0), 否则为 4:4:4
+     */
+    private Boolean chromaSubsampling;
+
+    /**
+     * png 压缩级别(0-9)
+     */
+    private Integer compressionLevel;
+
+    public Float getQuality() {
+        return ObjectUtil.defaultIfNull(quality, getPreset().getQuality());
+    }
+
+    public Boolean getProgressive() {
+        return ObjectUtil.defaultIfNull(progressive, getPreset().getProgressive());
+    }
+
+    public Boolean getChromaSubsampling() {
+        return ObjectUtil.defaultIfNull(chromaSubsampling, getPreset().getChromaSubsampling());
+    }
+
+    public Integer getCompressionLevel() {
+        return ObjectUtil.defaultIfNull(compressionLevel, getPreset().getCompressionLevel());
+    }
+
+    public EncodePreset getPreset() {
+        return ObjectUtil.defaultIfNull(preset, EncodePreset.BALANCED);
+    }
+
+}
@@ -33,6 +33,16 @@ public class ImageFile {
      */
     private String text;
 
+    /**
+     * 水印图片缓存键, 指定后不再对图片内容计算摘要
+     */
+    private String key;
+
+    /**
+     * 已渲染的水印图章
+     */
+    private WatermarkStamp stamp;
+
     public static ImageFile.Builder builder() {
         return new ImageFile.Builder();
     }
@@ -54,6 +64,16 @@ public class ImageFile {
          */
         private String text;
 
+        /**
+         * 水印图片缓存键
+         */
+        private String key;
+
+        /**
+         * 已渲染的水印图章
+         */
+        private WatermarkStamp stamp;
+
         public Builder file(File file) {
             this.file = file;
             return this;
@@ -69,8 +89,18 @@ public class ImageFile {
             return this;
         }
 
+        public Builder key(String key) {
+            this.key = key;
+            return this;
+        }
+
+        public Builder stamp(WatermarkStamp stamp) {
+            this.stamp = stamp;
+            return this;
+        }
+
         public ImageFile build() {
-            if (ObjectUtil.isAllEmpty(this.file, this.bytes, this.text)) {
+            if (ObjectUtil.isAllEmpty(this.file, this.bytes, this.text, this.stamp)) {
                 log.error("Watermark file, watermark byte array, text cannot be empty at the same time");
                 throw new WatermarkException("'imageFile','bytes','text'不能同时为空");
             }
@@ -82,6 +112,32 @@ public class ImageFile {
         this.text = builder.text;
         this.file = builder.file;
         this.bytes = builder.bytes;
+        this.key = builder.key;
+        this.stamp = builder.stamp;
+    }
+
+    /**
+     * 获取水印图片字节数组, 未指定时取图章的字节数组
+     *
+     * @return {@link byte[]}
+     */
+    public byte[] getBytes() {
+        if (ObjectUtil.isNull(this.bytes) && ObjectUtil.isNotNull(this.stamp)) {
+            return this.stamp.getBytes();
+        }
+        return this.bytes;
+    }
+
+    /**
+     * 获取水印图章, 未指定时由字节数组创建
+     *
+     * @return {@link WatermarkStamp}
+     */
+    public WatermarkStamp getStamp() {
+        if (ObjectUtil.isNull(this.stamp) && ObjectUtil.isNotNull(this.bytes)) {
+            this.stamp = WatermarkStamp.of(this.bytes);
+        }
+        return this.stamp;
     }
 
 
@@ -1,6 +1,10 @@
 package cn.darkjrong.watermark.domain;
 
+import cn.darkjrong.watermark.FileTypeUtils;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.ArrayUtil;
 import cn.hutool.core.util.ObjectUtil;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -24,9 +28,14 @@ public class SrcFile {
     private File file;
 
     /**
-     * 文件字节数组
+     * 文件字节数组, 仅指定文件时首次使用才读取
      */
-    private byte[] bytes;
+    private volatile byte[] bytes;
+
+    /**
+     * 文件类型, 首次使用时探测一次, 之后各处理环节共用
+     */
+    private volatile FileType fileType;
 
     public static SrcFile.Builder builder() {
         return new SrcFile.Builder();
@@ -44,6 +53,11 @@ public class SrcFile {
          */
         private byte[] bytes;
 
+        /**
+         * 文件类型
+         */
+        private FileType fileType;
+
         public Builder file(File file) {
             this.file = file;
             return this;
@@ -54,6 +68,11 @@ public class SrcFile {
             return this;
         }
 
+        public Builder fileType(FileType fileType) {
+            this.fileType = fileType;
+            return this;
+        }
+
         public SrcFile build() {
             if (ObjectUtil.isNull(this.file) && ObjectUtil.isNull(this.bytes)) {
                 log.error("The file and byte array cannot be empty at the same time");
@@ -66,11 +85,45 @@ public class SrcFile {
     private SrcFile(Builder builder) {
         this.file = builder.file;
         this.bytes = builder.bytes;
+        this.fileType = builder.fileType;
     }
 
+    /**
+     * 获取文件字节数组, 仅指定文件时读取一次并缓存
+     *
+     * @return {@link byte[]}
+     */
+    public byte[] getBytes() {
+        byte[] result = this.bytes;
+        if (ObjectUtil.isNull(result) && FileUtil.exist(this.file)) {
+            result = FileUtil.readBytes(this.file);
+            this.bytes = result;
+        }
+        return result;
+    }
 
+    /**
+     * 字节数组是否已在内存中(指定了字节数组或已读取过文件)
+     *
+     * @return boolean
+     */
+    public boolean hasBytes() {
+        return ArrayUtil.isNotEmpty(this.bytes);
+    }
 
-
+    /**
+     * 获取文件类型, 未指定时按文件头探测并缓存
+     *
+     * @return {@link FileType} 无法识别时返回 null
+     */
+    public FileType getFileType() {
+        FileType type = this.fileType;
+        if (ObjectUtil.isNull(type)) {
+            type = ObjectUtil.isNotNull(this.bytes) ? FileTypeUtils.detect(this.bytes) : FileTypeUtils.detect(this.file);
+            this.fileType = type;
+        }
+        return type;
+    }
 
 
 }
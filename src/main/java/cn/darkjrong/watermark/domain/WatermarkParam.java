@@ -63,10 +63,52 @@ public class WatermarkParam {
      */
     private Boolean bespread = Boolean.FALSE;
 
+    /**
+     * 是否允许大图并行处理, 调用方已并发处理大量任务时可关闭
+     */
+    private Boolean parallel = Boolean.TRUE;
+
+    /**
+     * 图片水印的输出编码参数, 为空时与原图格式一致
+     */
+    private ImageEncoding encoding;
+
+    /**
+     * 旧格式(doc/rtf/xls/ppt)是否输出为新格式(docx/xlsx/pptx), 默认与原文件格式一致
+     */
+    private Boolean upgrade = Boolean.FALSE;
+
+    /**
+     * Excel 水印是否可打印: 以页眉图片添加, 否则为打印时不生效的背景图片
+     */
+    private Boolean printable = Boolean.FALSE;
+
     public static WatermarkParam.Builder builder() {
         return new WatermarkParam.Builder();
     }
 
+    /**
+     * 以当前参数为初始值创建构建器
+     *
+     * @return {@link Builder}
+     */
+    public WatermarkParam.Builder toBuilder() {
+        return new WatermarkParam.Builder()
+                .file(this.file)
+                .imageFile(this.imageFile)
+                .alpha(this.alpha)
+                .fontSize(this.fontSize)
+                .color(this.color)
+                .degree(this.degree)
+                .xMove(this.xMove)
+                .yMove(this.yMove)
+                .bespread(this.bespread)
+                .parallel(this.parallel)
+                .encoding(this.encoding)
+                .upgrade(this.upgrade)
+                .printable(this.printable);
+    }
+
     public static class Builder {
 
         /**
@@ -114,6 +156,26 @@ public class WatermarkParam {
          */
         private Boolean bespread = Boolean.FALSE;
 
+        /**
+         * 是否允许大图并行处理
+         */
+        private Boolean parallel = Boolean.TRUE;
+
+        /**
+         * 图片水印的输出编码参数
+         */
+        private ImageEncoding encoding;
+
+        /**
+         * 旧格式是否输出为新格式
+         */
+        private Boolean upgrade = Boolean.FALSE;
+
+        /**
+         * Excel 水印是否可打印
+         */
+        private Boolean printable = Boolean.FALSE;
+
         public Builder file(SrcFile file) {
             this.file = file;
             return this;
@@ -159,6 +221,26 @@ public class WatermarkParam {
             return this;
         }
 
+        public Builder parallel(Boolean parallel) {
+            this.parallel = parallel;
+            return this;
+        }
+
+        public Builder encoding(ImageEncoding encoding) {
+            this.encoding = encoding;
+            return this;
+        }
+
+        public Builder upgrade(Boolean upgrade) {
+            this.upgrade = upgrade;
+            return this;
+        }
+
+        public Builder printable(Boolean printable) {
+            this.printable = printable;
+            return this;
+        }
+
         public WatermarkParam build() {
             if (ObjectUtil.isNull(this.file) || ObjectUtil.isNull(this.imageFile)) {
                 log.error("file and image cannot be empty");
@@ -178,6 +260,10 @@ public class WatermarkParam {
         this.degree = builder.degree;
         this.xMove = builder.xMove;
         this.yMove = builder.yMove;
+        this.parallel = builder.parallel;
+        this.encoding = builder.encoding;
+        this.upgrade = builder.upgrade;
+        this.printable = builder.printable;
     }
 
 
@@ -0,0 +1,101 @@
+package cn.darkjrong.watermark.domain;
+
+import cn.hutool.core.img.ImgUtil;
+import cn.hutool.core.util.ObjectUtil;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 已渲染的水印图章
+ * <p>
+ * 同时持有编码后的字节与解码后的图像, 缺失的一方在首次使用时生成并保留.
+ * 图章会被缓存并在多个请求间共享, 调用方不可修改返回的字节数组或图像
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class WatermarkStamp {
+
+    /**
+     * 图章字节数组(png)
+     */
+    private volatile byte[] bytes;
+
+    /**
+     * 图章图像
+     */
+    private volatile BufferedImage image;
+
+    private WatermarkStamp(byte[] bytes, BufferedImage image) {
+        this.bytes = bytes;
+        this.image = image;
+    }
+
+    /**
+     * 由字节数组创建
+     *
+     * @param bytes 图章字节数组
+     * @return {@link WatermarkStamp}
+     */
+    public static WatermarkStamp of(byte[] bytes) {
+        return new WatermarkStamp(bytes, null);
+    }
+
+    /**
+     * 由图像创建
+     *
+     * @param image 图章图像
+     * @return {@link WatermarkStamp}
+     */
+    public static WatermarkStamp of(BufferedImage image) {
+        return new WatermarkStamp(null, image);
+    }
+
+    /**
+     * 获取图章字节数组, 未编码时按png编码一次
+     *
+     * @return {@link byte[]}
+     */
+    public byte[] getBytes() {
+        byte[] result = this.bytes;
+        if (ObjectUtil.isNull(result)) {
+            result = ImgUtil.toBytes(this.image, ImgUtil.IMAGE_TYPE_PNG);
+            this.bytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * 获取图章图像, 未解码时解码一次
+     *
+     * @return {@link BufferedImage}
+     */
+    public BufferedImage getImage() {
+        BufferedImage result = this.image;
+        if (ObjectUtil.isNull(result)) {
+            result = ImgUtil.toImage(this.bytes);
+            this.image = result;
+        }
+        return result;
+    }
+
+    /**
+     * 图章宽度
+     *
+     * @return int
+     */
+    public int getWidth() {
+        return getImage().getWidth();
+    }
+
+    /**
+     * 图章高度
+     *
+     * @return int
+     */
+    public int getHeight() {
+        return getImage().getHeight();
+    }
+
+
+}
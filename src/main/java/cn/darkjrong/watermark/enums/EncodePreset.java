@@ -0,0 +1,47 @@
+package cn.darkjrong.watermark.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 图片编码预设, 在编码速度与输出大小之间取舍
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+@Getter
+@AllArgsConstructor
+public enum EncodePreset {
+
+    // 编码最快, png 低压缩级别
+    SPEED(0.85F, Boolean.FALSE, Boolean.TRUE, 1),
+
+    // 默认, 与 ImageIO 默认压缩级别一致
+    BALANCED(0.85F, Boolean.FALSE, Boolean.TRUE, 4),
+
+    // 输出最小, jpeg 渐进式编码, png 最高压缩级别
+    SIZE(0.75F, Boolean.TRUE, Boolean.TRUE, 9),
+
+    ;
+
+    /**
+     * jpeg 质量(0-1)
+     */
+    private final Float quality;
+
+    /**
+     * jpeg 是否渐进式
+     */
+    private final Boolean progressive;
+
+    /**
+     * jpeg 是否色度抽样(4:2:0), 否则为 4:4:4
+     */
+    private final Boolean chromaSubsampling;
+
+    /**
+     * png 压缩级别(0-9)
+     */
+    private final Integer compressionLevel;
+
+}
@@ -3,7 +3,9 @@ package cn.darkjrong.watermark.factory;
 import cn.darkjrong.watermark.Converter;
 import cn.darkjrong.watermark.FileTypeUtils;
 import cn.darkjrong.watermark.LicenseUtils;
+import cn.darkjrong.watermark.domain.SrcFile;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.IoUtil;
@@ -42,6 +44,31 @@ public abstract class AbstractWatermarkProcessor implements WatermarkProcessor {
      */
     protected abstract byte[] watermark(WatermarkParam watermarkParam) throws WatermarkException;
 
+    /**
+     * 获取原文件输入流, 不做格式转换, 由处理器按原格式直接加载;
+     * 只指定文件路径时直接读取文件, 不再读入字节数组
+     *
+     * @param file 文件
+     * @return {@link InputStream}
+     * @throws WatermarkException 水印异常
+     */
+    protected InputStream getSourceStream(SrcFile file) throws WatermarkException {
+        if (!file.hasBytes() && FileUtil.exist(file.getFile())) {
+            return FileUtil.getInputStream(file.getFile());
+        }
+        return new ByteArrayInputStream(file.getBytes());
+    }
+
+    /**
+     * 是否将旧格式输出为新格式
+     *
+     * @param watermarkParam 水印参数
+     * @return boolean
+     */
+    protected boolean isUpgrade(WatermarkParam watermarkParam) {
+        return Boolean.TRUE.equals(watermarkParam.getUpgrade());
+    }
+
     /**
      * 获取输入流
      *
@@ -71,16 +98,28 @@ public abstract class AbstractWatermarkProcessor implements WatermarkProcessor {
      * @throws WatermarkException 水印异常
      */
     protected InputStream getInputStream(byte[] file) throws WatermarkException {
-        if (FileTypeUtils.isXls(file)) {
+        return getInputStream(SrcFile.builder().bytes(file).build());
+    }
+
+    /**
+     * 获取输入流, 使用 {@link SrcFile} 上已探测的文件类型, 不再重复探测
+     *
+     * @param file 文件
+     * @return {@link InputStream}
+     * @throws WatermarkException 水印异常
+     */
+    protected InputStream getInputStream(SrcFile file) throws WatermarkException {
+        FileType fileType = file.getFileType();
+        if (fileType == FileType.XLS) {
             return IoUtil.toStream(Converter.xls2Xlsx(file));
-        }else if (FileTypeUtils.isDoc(file)) {
+        }else if (fileType == FileType.DOC) {
             return IoUtil.toStream(Converter.doc2Docx(file));
-        }else if (FileTypeUtils.isPpt(file)) {
+        }else if (fileType == FileType.PPT) {
             return IoUtil.toStream(Converter.ppt2Pptx(file));
-        }else if (FileTypeUtils.isHtml(file)) {
+        }else if (fileType == FileType.HTML) {
             return IoUtil.toStream(Converter.html2Pdf(file));
         }else {
-            return new ByteArrayInputStream(file);
+            return new ByteArrayInputStream(file.getBytes());
         }
     }
 
@@ -0,0 +1,237 @@
+package cn.darkjrong.watermark.factory;
+
+import cn.darkjrong.watermark.ImageUtils;
+import cn.hutool.core.util.ObjectUtil;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Vector;
+import java.util.stream.Collectors;
+
+/**
+ * 按行条带惰性生成的水印图像
+ * <p>
+ * 每个条带通过 {@link ImageReadParam#setSourceRegion(Rectangle)} 从原图解码, 叠加水印图章后缓存,
+ * 写出器按行顺序拉取像素时每个条带只解码一次, 内存占用与条带高度成正比
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+class BandedImage implements RenderedImage {
+
+    private final ImageReader reader;
+    private final BufferedImage stamp;
+    private final List<Point> points;
+    private final boolean parallel;
+    private final int width;
+    private final int height;
+    private final int bandHeight;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+
+    /**
+     * 当前缓存的条带
+     */
+    private BufferedImage band;
+    private int bandIndex = -1;
+
+    BandedImage(ImageReader reader, BufferedImage stamp, List<Point> points, int bandHeight, boolean parallel) throws IOException {
+        this.reader = reader;
+        this.stamp = stamp;
+        this.points = points;
+        this.parallel = parallel;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+        this.bandHeight = Math.max(1, Math.min(bandHeight, this.height));
+        this.colorModel = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+        this.sampleModel = this.colorModel.createCompatibleSampleModel(this.width, this.bandHeight);
+    }
+
+    /**
+     * 条带数量
+     *
+     * @return int
+     */
+    int getNumBands() {
+        return (height + bandHeight - 1) / bandHeight;
+    }
+
+    /**
+     * 获取指定条带, 解码原图区域并叠加水印
+     *
+     * @param index 条带序号
+     * @return {@link BufferedImage} 条带图像
+     */
+    synchronized BufferedImage getBand(int index) {
+        if (index == bandIndex) {
+            return band;
+        }
+        int y = index * bandHeight;
+        int h = Math.min(bandHeight, height - y);
+        try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, h));
+            BufferedImage source = reader.read(0, param);
+
+            BufferedImage result = ObjectUtil.isNotNull(band) && band.getHeight() == h
+                    ? band : new BufferedImage(width, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = result.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, width, h);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.drawImage(source, 0, 0, null);
+            g.dispose();
+
+            List<Point> bandPoints = points.stream()
+                    .filter(a -> a.y < y + h && a.y + stamp.getHeight() > y)
+                    .map(a -> new Point(a.x, a.y - y))
+                    .collect(Collectors.toList());
+            ImageUtils.overlay(result, stamp, bandPoints, parallel);
+
+            band = result;
+            bandIndex = index;
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 条带在原图中的起始行
+     *
+     * @param index 条带序号
+     * @return int
+     */
+    int getBandY(int index) {
+        return index * bandHeight;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return sampleModel;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return getNumBands();
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return bandHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getBand(tileY).getRaster().createTranslatedChild(0, getBandY(tileY));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(rect.width, rect.height)
+                .createWritableTranslatedChild(rect.x, rect.y);
+        return copyData(raster);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) {
+            return raster;
+        }
+        int first = bounds.y / bandHeight;
+        int last = (bounds.y + bounds.height - 1) / bandHeight;
+        for (int index = first; index <= last; index++) {
+            Raster tile = getTile(0, index);
+            Rectangle overlap = bounds.intersection(tile.getBounds());
+            if (!overlap.isEmpty()) {
+                raster.setRect(tile.createChild(overlap.x, overlap.y, overlap.width, overlap.height,
+                        overlap.x, overlap.y, null));
+            }
+        }
+        return raster;
+    }
+
+
+}
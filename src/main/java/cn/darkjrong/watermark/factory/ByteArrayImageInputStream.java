@@ -0,0 +1,54 @@
+package cn.darkjrong.watermark.factory;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+
+/**
+ * 基于字节数组的图像输入流
+ * <p>
+ * 可任意回退, 不再像 {@link javax.imageio.ImageIO#createImageInputStream(Object)} 那样额外缓存一份数据
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+class ByteArrayImageInputStream extends ImageInputStreamImpl {
+
+    private final byte[] bytes;
+
+    ByteArrayImageInputStream(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+        return bytes[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+        int count = (int) Math.min(len, bytes.length - streamPos);
+        System.arraycopy(bytes, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return bytes.length;
+    }
+
+
+}
@@ -1,20 +1,43 @@
 package cn.darkjrong.watermark.factory;
 
 import cn.darkjrong.watermark.FileTypeUtils;
+import cn.darkjrong.watermark.LicenseUtils;
+import cn.darkjrong.watermark.domain.ImageFile;
+import cn.darkjrong.watermark.domain.SrcFile;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
+import cn.hutool.core.img.ImgUtil;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.ObjectUtil;
+import com.aspose.cells.PageSetup;
+import com.aspose.cells.SaveFormat;
+import com.aspose.cells.Workbook;
+import com.aspose.cells.WorksheetCollection;
 import lombok.extern.slf4j.Slf4j;
 import org.docx4j.openpackaging.packages.SpreadsheetMLPackage;
+import org.docx4j.openpackaging.parts.PartName;
+import org.docx4j.openpackaging.parts.VMLBinaryPart;
 import org.docx4j.openpackaging.parts.SpreadsheetML.WorksheetPart;
 import org.docx4j.openpackaging.parts.WordprocessingML.BinaryPartAbstractImage;
+import org.docx4j.openpackaging.parts.relationships.RelationshipsPart;
 import org.docx4j.relationships.Relationship;
 import org.xlsx4j.jaxb.Context;
+import org.xlsx4j.sml.CTHeaderFooter;
+import org.xlsx4j.sml.CTLegacyDrawing;
 import org.xlsx4j.sml.CTSheetBackgroundPicture;
+import org.xlsx4j.sml.Worksheet;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Excel水印处理器
@@ -25,25 +48,86 @@ import java.io.File;
 @Slf4j
 public class ExcelWatermarkProcessor extends AbstractWatermarkProcessor {
 
+    /**
+     * xlsx 是否在 zip 层流式处理
+     */
+    private static volatile boolean streaming = Boolean.TRUE;
+
+    /**
+     * 流式处理时映射原文件的最小文件大小(字节)
+     */
+    private static volatile long mapThreshold = 64L * 1024 * 1024;
+
+    public static boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * 开启后, xlsx 不再整体加载为 {@link SpreadsheetMLPackage}: 未修改的条目原样复制压缩数据,
+     * 工作表按字节扫描、原样复制并插入背景图片, 各工作表共用一份图片; Zip64、加密等无法流式处理的工作簿仍整体加载
+     *
+     * @param streaming 是否开启
+     */
+    public static void setStreaming(boolean streaming) {
+        ExcelWatermarkProcessor.streaming = streaming;
+    }
+
+    public static long getMapThreshold() {
+        return mapThreshold;
+    }
+
+    /**
+     * 设置流式处理时映射原文件的最小文件大小, 小于该值的原文件读入堆内存.
+     * <p>
+     * 映射的内存在被垃圾回收前不会释放, Windows 下原文件在此期间一直被锁定, 不能删除、覆盖或改名
+     *
+     * @param mapThreshold 字节数
+     */
+    public static void setMapThreshold(long mapThreshold) {
+        ExcelWatermarkProcessor.mapThreshold = Math.max(0, mapThreshold);
+    }
+
     @Override
     public Boolean supportType(File file) {
-        return FileTypeUtils.isExcel(file);
+        return supportType(FileTypeUtils.detect(file));
     }
 
     @Override
     public Boolean supportType(byte[] file) {
-        return FileTypeUtils.isExcel(file);
+        return supportType(FileTypeUtils.detect(file));
+    }
+
+    @Override
+    public Boolean supportType(FileType fileType) {
+        return fileType == FileType.XLSX || fileType == FileType.XLS;
     }
 
     @Override
     public byte[] watermark(WatermarkParam watermarkParam) throws WatermarkException {
+        if (watermarkParam.getFile().getFileType() == FileType.XLS) {
+            return watermarkXls(watermarkParam);
+        }
         ByteArrayOutputStream outputStream = null;
+        InputStream inputStream = null;
         try {
-            SpreadsheetMLPackage excelPackage = SpreadsheetMLPackage.load(getInputStream(watermarkParam.getFile().getBytes()));
+            XlsxBackgroundWriter writer = openWriter(watermarkParam);
+            if (ObjectUtil.isNotNull(writer)) {
+                outputStream = new ByteArrayOutputStream();
+                writer.write(outputStream);
+                return outputStream.toByteArray();
+            }
+
+            inputStream = getSourceStream(watermarkParam.getFile());
+            SpreadsheetMLPackage excelPackage = SpreadsheetMLPackage.load(inputStream);
             int size = excelPackage.getWorkbookPart().getContents().getSheets().getSheet().size();
+            BinaryPartAbstractImage imagePart = null;
             for (int i=0;i<size;i++) {
                 WorksheetPart worksheet = excelPackage.getWorkbookPart().getWorksheet(i);
-                createBgPic(worksheet, excelPackage, watermarkParam.getImageFile().getBytes());
+                if (isPrintable(watermarkParam)) {
+                    imagePart = createHeaderPic(worksheet, excelPackage, imagePart, watermarkParam.getImageFile());
+                } else {
+                    imagePart = createBgPic(worksheet, excelPackage, imagePart, watermarkParam.getImageFile().getBytes());
+                }
             }
             outputStream = new ByteArrayOutputStream();
             excelPackage.save(outputStream);
@@ -53,37 +137,254 @@ public class ExcelWatermarkProcessor extends AbstractWatermarkProcessor {
             throw new WatermarkException(e.getMessage());
         }finally {
             IoUtil.close(outputStream);
+            IoUtil.close(inputStream);
+        }
+    }
+
+    @Override
+    public void addWatermark(WatermarkParam watermarkParam, File target) throws WatermarkException {
+        File source = watermarkParam.getFile().getFile();
+        if (watermarkParam.getFile().getFileType() != FileType.XLSX || FileUtil.equals(source, target)) {
+            super.addWatermark(watermarkParam, target);
+            return;
+        }
+        LicenseUtils.verificationLicense();
+        try {
+            XlsxBackgroundWriter writer = openWriter(watermarkParam);
+            if (ObjectUtil.isNull(writer)) {
+                super.addWatermark(watermarkParam, target);
+                return;
+            }
+            // 直接写入目标文件, 不再经过字节数组; 先写入同目录临时文件, 完成后再改名, 失败时不留下不完整的目标文件
+            File parent = FileUtil.mkParentDirs(target);
+            Path temp = Files.createTempFile(parent.toPath(), target.getName(), ".tmp");
+            try {
+                try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                    writer.write(outputStream);
+                }
+                Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (WatermarkException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error(String.format("Excel added watermark exception 【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
         }
     }
 
     /**
-     * 使用水印图片作为excel背景，达到水印效果<但打印时不会生效>
+     * 创建 xlsx 流式写出器
      *
-     * @param worksheet      工作表
-     * @param excelPackage excel package
-     * @param imageFile      图像文件
+     * @param watermarkParam 水印参数
+     * @return {@link XlsxBackgroundWriter} 未开启或无法流式处理时为空
+     * @throws Exception 异常
+     */
+    private XlsxBackgroundWriter openWriter(WatermarkParam watermarkParam) throws Exception {
+        if (!streaming) {
+            return null;
+        }
+        ImageFile imageFile = watermarkParam.getImageFile();
+        byte[] image = imageFile.getBytes();
+        String extension = getExtension(image);
+        if (ObjectUtil.isNull(extension)) {
+            image = ImgUtil.toBytes(imageFile.getStamp().getImage(), ImgUtil.IMAGE_TYPE_PNG);
+            extension = ImgUtil.IMAGE_TYPE_PNG;
+        }
+        int[] header = isPrintable(watermarkParam)
+                ? new int[]{imageFile.getStamp().getWidth(), imageFile.getStamp().getHeight()} : null;
+        return XlsxBackgroundWriter.open(getSourceBuffer(watermarkParam.getFile()), image, extension, header);
+    }
+
+    /**
+     * 是否以页眉图片添加可打印的水印
+     *
+     * @param watermarkParam 水印参数
+     * @return boolean
+     */
+    private boolean isPrintable(WatermarkParam watermarkParam) {
+        return Boolean.TRUE.equals(watermarkParam.getPrintable());
+    }
+
+    /**
+     * 获取原文件内容; 只指定文件路径且文件不小于 {@link #setMapThreshold(long)} 时映射文件, 不占用堆内存,
+     * 其余读入堆内存, 不锁定原文件
+     *
+     * @param file 文件
+     * @return {@link ByteBuffer}
+     * @throws IOException IO异常
+     */
+    private ByteBuffer getSourceBuffer(SrcFile file) throws IOException {
+        long size = file.hasBytes() || !FileUtil.exist(file.getFile()) ? -1 : FileUtil.size(file.getFile());
+        if (size >= mapThreshold && size <= Integer.MAX_VALUE) {
+            try (FileChannel channel = FileChannel.open(file.getFile().toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        return ByteBuffer.wrap(file.getBytes());
+    }
+
+    /**
+     * 按文件头判断图片扩展名
+     *
+     * @param image 图片
+     * @return {@link String} png/jpeg/gif, 其他格式为空
+     */
+    private String getExtension(byte[] image) {
+        if (image.length > 8 && (image[0] & 0xFF) == 0x89 && image[1] == 'P' && image[2] == 'N' && image[3] == 'G') {
+            return ImgUtil.IMAGE_TYPE_PNG;
+        }
+        if (image.length > 3 && (image[0] & 0xFF) == 0xFF && (image[1] & 0xFF) == 0xD8 && (image[2] & 0xFF) == 0xFF) {
+            return ImgUtil.IMAGE_TYPE_JPEG;
+        }
+        if (image.length > 6 && image[0] == 'G' && image[1] == 'I' && image[2] == 'F' && image[3] == '8') {
+            return ImgUtil.IMAGE_TYPE_GIF;
+        }
+        return null;
+    }
+
+    /**
+     * xls 直接加载为 {@link Workbook} 并设置各工作表背景图片, 不再先转换为 xlsx
+     *
+     * @param watermarkParam 水印参数
+     * @return {@link byte[]}
      * @throws WatermarkException 水印异常
      */
-    private void createBgPic(WorksheetPart worksheet, SpreadsheetMLPackage excelPackage, File imageFile) throws Exception {
-        createBgPic(worksheet, excelPackage, FileUtil.readBytes(imageFile));
+    private byte[] watermarkXls(WatermarkParam watermarkParam) throws WatermarkException {
+        ByteArrayOutputStream outputStream = null;
+        InputStream inputStream = null;
+        Workbook workbook = null;
+        try {
+            inputStream = getSourceStream(watermarkParam.getFile());
+            workbook = new Workbook(inputStream);
+            byte[] image = watermarkParam.getImageFile().getBytes();
+            WorksheetCollection worksheets = workbook.getWorksheets();
+            for (int i = 0; i < worksheets.getCount(); i++) {
+                if (isPrintable(watermarkParam)) {
+                    // 页眉中间部分, 保留原有文字
+                    PageSetup pageSetup = worksheets.get(i).getPageSetup();
+                    pageSetup.setHeader(1, HeaderPicture.merge(pageSetup.getHeader(1)));
+                    pageSetup.setHeaderPicture(1, image);
+                } else {
+                    worksheets.get(i).setBackgroundImage(image);
+                }
+            }
+            outputStream = new ByteArrayOutputStream();
+            workbook.save(outputStream, isUpgrade(watermarkParam) ? SaveFormat.XLSX : SaveFormat.EXCEL_97_TO_2003);
+            return outputStream.toByteArray();
+        } catch (Exception e) {
+            log.error(String.format("Excel added watermark exception 【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
+        } finally {
+            IoUtil.close(outputStream);
+            IoUtil.close(inputStream);
+            if (ObjectUtil.isNotNull(workbook)) {
+                workbook.dispose();
+            }
+        }
+    }
+
+    /**
+     * 以页眉图片添加水印, 打印、导出 PDF 时生效
+     * <p>
+     * 每个工作表一个 VML 绘图, 图片部件只创建一次, 各 VML 绘图引用同一部件;
+     * 工作表原有的页眉绘图被替换, 原页眉左、右部分的图片随之去除
+     *
+     * @param worksheet    工作表
+     * @param excelPackage excel package
+     * @param imagePart    已创建的图片部件, 为空时创建
+     * @param imageFile    图像文件
+     * @return {@link BinaryPartAbstractImage} 图片部件
+     * @throws Exception 异常
+     */
+    private BinaryPartAbstractImage createHeaderPic(WorksheetPart worksheet, SpreadsheetMLPackage excelPackage,
+                                                    BinaryPartAbstractImage imagePart, ImageFile imageFile) throws Exception {
+        Worksheet contents = worksheet.getContents();
+        CTHeaderFooter headerFooter = contents.getHeaderFooter();
+        if (ObjectUtil.isNull(headerFooter)) {
+            headerFooter = Context.getsmlObjectFactory().createCTHeaderFooter();
+            contents.setHeaderFooter(headerFooter);
+        }
+        List<String> shapeIds = new ArrayList<>(3);
+        headerFooter.setOddHeader(HeaderPicture.merge(headerFooter.getOddHeader()));
+        shapeIds.add(HeaderPicture.ODD);
+        if (headerFooter.isDifferentOddEven()) {
+            headerFooter.setEvenHeader(HeaderPicture.merge(headerFooter.getEvenHeader()));
+            shapeIds.add(HeaderPicture.EVEN);
+        }
+        if (headerFooter.isDifferentFirst()) {
+            headerFooter.setFirstHeader(HeaderPicture.merge(headerFooter.getFirstHeader()));
+            shapeIds.add(HeaderPicture.FIRST);
+        }
+
+        // 原页眉绘图被替换, 去掉指向它的关系, 保存时不再写出
+        if (ObjectUtil.isNotNull(contents.getLegacyDrawingHF())) {
+            removeRelationship(worksheet, contents.getLegacyDrawingHF().getId());
+        }
+        VMLBinaryPart drawing = new VMLBinaryPart(new PartName("/xl/drawings/vmlDrawingHF.vml"));
+        Relationship drawingRelationship = worksheet.addTargetPart(drawing, RelationshipsPart.AddPartBehaviour.RENAME_IF_NAME_EXISTS);
+        Relationship imageRelationship;
+        if (ObjectUtil.isNull(imagePart)) {
+            imagePart = BinaryPartAbstractImage.createImagePart(excelPackage, drawing, imageFile.getBytes());
+            imageRelationship = imagePart.getSourceRelationships().get(0);
+        } else {
+            imageRelationship = drawing.addTargetPart(imagePart, RelationshipsPart.AddPartBehaviour.REUSE_EXISTING);
+        }
+        drawing.setBinaryData(HeaderPicture.vml(shapeIds, imageRelationship.getId(),
+                imageFile.getStamp().getWidth(), imageFile.getStamp().getHeight()));
+
+        CTLegacyDrawing legacyDrawing = Context.getsmlObjectFactory().createCTLegacyDrawing();
+        legacyDrawing.setId(drawingRelationship.getId());
+        contents.setLegacyDrawingHF(legacyDrawing);
+        return imagePart;
     }
 
     /**
-     * 使用水印图片作为excel背景，达到水印效果<但打印时不会生效>
+     * 使用水印图片作为excel背景，达到水印效果<但打印时不会生效, 需要打印时设置 {@link WatermarkParam#getPrintable()}>
+     * <p>
+     * 图片部件只创建一次, 其余工作表通过关系引用同一部件, 不再为每个工作表保存一份图片
      *
-     * @param worksheet      工作表
+     * @param worksheet    工作表
      * @param excelPackage excel package
-     * @param imageFile      图像文件
+     * @param imagePart    已创建的图片部件, 为空时创建
+     * @param imageFile    图像文件
+     * @return {@link BinaryPartAbstractImage} 图片部件
      * @throws WatermarkException 水印异常
      */
-    private void createBgPic(WorksheetPart worksheet, SpreadsheetMLPackage excelPackage, byte[] imageFile) throws Exception {
+    private BinaryPartAbstractImage createBgPic(WorksheetPart worksheet, SpreadsheetMLPackage excelPackage,
+                                                BinaryPartAbstractImage imagePart, byte[] imageFile) throws Exception {
+        if (ObjectUtil.isNotNull(worksheet.getContents().getPicture())) {
+            removeRelationship(worksheet, worksheet.getContents().getPicture().getId());
+        }
         CTSheetBackgroundPicture ctSheetBackgroundPicture = Context.getsmlObjectFactory().createCTSheetBackgroundPicture();
         worksheet.getContents().setPicture(ctSheetBackgroundPicture);
-        BinaryPartAbstractImage imagePart = BinaryPartAbstractImage.createImagePart(excelPackage, worksheet, imageFile);
-        Relationship sourceRelationship = imagePart.getSourceRelationships().get(0);
-        String imageRelId = sourceRelationship.getId();
-        ctSheetBackgroundPicture.setId(imageRelId);
+        Relationship sourceRelationship;
+        if (ObjectUtil.isNull(imagePart)) {
+            imagePart = BinaryPartAbstractImage.createImagePart(excelPackage, worksheet, imageFile);
+            sourceRelationship = imagePart.getSourceRelationships().get(0);
+        } else {
+            sourceRelationship = worksheet.addTargetPart(imagePart, RelationshipsPart.AddPartBehaviour.REUSE_EXISTING);
+        }
+        ctSheetBackgroundPicture.setId(sourceRelationship.getId());
+        return imagePart;
     }
 
+    /**
+     * 删除工作表中被替换的背景图片或页眉绘图关系; 不再被引用的部件保存时不会写出
+     *
+     * @param worksheet 工作表
+     * @param id        关系 id
+     */
+    private void removeRelationship(WorksheetPart worksheet, String id) {
+        RelationshipsPart relationshipsPart = worksheet.getRelationshipsPart();
+        if (ObjectUtil.isNull(relationshipsPart) || ObjectUtil.isNull(id)) {
+            return;
+        }
+        Relationship relationship = relationshipsPart.getRelationshipByID(id);
+        if (ObjectUtil.isNotNull(relationship)) {
+            relationshipsPart.removeRelationship(relationship);
+        }
+    }
 
 }
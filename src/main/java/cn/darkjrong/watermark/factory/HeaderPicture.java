@@ -0,0 +1,121 @@
+package cn.darkjrong.watermark.factory;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Excel 页眉图片
+ * <p>
+ * 将水印放入页眉中间部分({@code &C&G}), 打印、导出 PDF 时按页生效;
+ * 图片由工作表 legacyDrawingHF 关系指向的 VML 绘图引用, VML 中形状 id 与页眉位置对应(CH/CHEVEN/CHFIRST)
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+class HeaderPicture {
+
+    /**
+     * 奇数页(默认)页眉中间部分的形状 id
+     */
+    static final String ODD = "CH";
+
+    /**
+     * 偶数页页眉中间部分的形状 id
+     */
+    static final String EVEN = "CHEVEN";
+
+    /**
+     * 首页页眉中间部分的形状 id
+     */
+    static final String FIRST = "CHFIRST";
+
+    private static final String PICTURE = "&G";
+
+    private HeaderPicture() {
+    }
+
+    /**
+     * 在页眉中间部分加入图片, 保留原有文字;
+     * 一个页眉部分只能有一张图片, 原有的页眉绘图被新的 VML 绘图替换, 左、右部分原有的图片引用一并去除(原图片丢失)
+     *
+     * @param header 原页眉, 可为空
+     * @return {@link String} 新页眉
+     */
+    static String merge(String header) {
+        StringBuilder[] sections = {new StringBuilder(), new StringBuilder(), new StringBuilder()};
+        int section = 1;
+        String text = StrUtil.nullToEmpty(header);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&' && i + 1 < text.length()) {
+                char code = text.charAt(i + 1);
+                int index = "LCR".indexOf(code);
+                if (index >= 0) {
+                    section = index;
+                    i++;
+                    continue;
+                }
+                if (code == 'G') {
+                    i++;
+                    continue;
+                }
+                sections[section].append(c).append(code);
+                i++;
+                continue;
+            }
+            sections[section].append(c);
+        }
+        sections[1].append(PICTURE);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < sections.length; i++) {
+            if (sections[i].length() > 0) {
+                builder.append('&').append("LCR".charAt(i)).append(sections[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 生成页眉图片的 VML 绘图
+     *
+     * @param shapeIds 形状 id
+     * @param relId    VML 到图片的关系 id
+     * @param width    图片宽度(像素)
+     * @param height   图片高度(像素)
+     * @return {@link byte[]}
+     */
+    static byte[] vml(List<String> shapeIds, String relId, int width, int height) {
+        StringBuilder builder = new StringBuilder()
+                .append("<xml xmlns:v=\"urn:schemas-microsoft-com:vml\"")
+                .append(" xmlns:o=\"urn:schemas-microsoft-com:office:office\"")
+                .append(" xmlns:x=\"urn:schemas-microsoft-com:office:excel\">")
+                .append("<o:shapelayout v:ext=\"edit\"><o:idmap v:ext=\"edit\" data=\"1\"/></o:shapelayout>")
+                .append("<v:shapetype id=\"_x0000_t75\" coordsize=\"21600,21600\" o:spt=\"75\" o:preferrelative=\"t\"")
+                .append(" path=\"m@4@5l@4@11@9@11@9@5xe\" filled=\"f\" stroked=\"f\">")
+                .append("<v:stroke joinstyle=\"miter\"/><v:formulas>")
+                .append("<v:f eqn=\"if lineDrawn pixelLineWidth 0\"/><v:f eqn=\"sum @0 1 0\"/>")
+                .append("<v:f eqn=\"sum 0 0 @1\"/><v:f eqn=\"prod @2 1 2\"/>")
+                .append("<v:f eqn=\"prod @3 21600 pixelWidth\"/><v:f eqn=\"prod @3 21600 pixelHeight\"/>")
+                .append("<v:f eqn=\"sum @0 0 1\"/><v:f eqn=\"prod @6 1 2\"/>")
+                .append("<v:f eqn=\"prod @7 21600 pixelWidth\"/><v:f eqn=\"sum @8 21600 0\"/>")
+                .append("<v:f eqn=\"prod @7 21600 pixelHeight\"/><v:f eqn=\"sum @10 21600 0\"/>")
+                .append("</v:formulas>")
+                .append("<v:path o:extrusionok=\"f\" gradientshapeok=\"t\" o:connecttype=\"rect\"/>")
+                .append("<o:lock v:ext=\"edit\" aspectratio=\"t\"/></v:shapetype>");
+        // 96 dpi 下 1 像素为 0.75 磅
+        String style = StrUtil.format("position:absolute;margin-left:0;margin-top:0;width:{}pt;height:{}pt;z-index:1",
+                width * 0.75, height * 0.75);
+        for (int i = 0; i < shapeIds.size(); i++) {
+            builder.append("<v:shape id=\"").append(shapeIds.get(i)).append("\" o:spid=\"_x0000_s").append(1025 + i)
+                    .append("\" type=\"#_x0000_t75\" style=\"").append(style).append("\">")
+                    .append("<v:imagedata o:relid=\"").append(relId).append("\" o:title=\"watermark\"/>")
+                    .append("<o:lock v:ext=\"edit\" rotation=\"t\"/></v:shape>");
+        }
+        return builder.append("</xml>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+}
@@ -1,15 +1,34 @@
 package cn.darkjrong.watermark.factory;
 
 import cn.darkjrong.watermark.FileTypeUtils;
+import cn.darkjrong.watermark.ImageUtils;
+import cn.darkjrong.watermark.domain.ImageEncoding;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.img.ImgUtil;
+import cn.hutool.core.util.ArrayUtil;
+import cn.hutool.core.util.ObjectUtil;
+import cn.hutool.core.util.StrUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.w3c.dom.NodeList;
 
-import javax.swing.*;
+import javax.imageio.*;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * 图片水印处理器
@@ -20,8 +39,48 @@ import java.io.File;
 @Slf4j
 public class ImageWatermarkProcessor extends AbstractWatermarkProcessor {
 
+    /**
+     * 启用条带流式处理的最小像素数
+     */
+    private static volatile long streamingThreshold = 64L * 1024 * 1024;
+
+    /**
+     * 流式处理的条带高度(行)
+     */
+    private static volatile int bandHeight = 512;
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    public static long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * 设置启用条带流式处理的最小像素数, 超过该值的图片按条带解码、叠加、写出, 内存占用与条带高度成正比;
+     * jdk 自带的 jpeg 编码器会一次取出整幅像素, 输出 jpeg 时仍需一份完整栅格
+     *
+     * @param streamingThreshold 像素数
+     */
+    public static void setStreamingThreshold(long streamingThreshold) {
+        ImageWatermarkProcessor.streamingThreshold = Math.max(0, streamingThreshold);
+    }
+
+    public static int getBandHeight() {
+        return bandHeight;
+    }
+
+    /**
+     * 设置流式处理的条带高度; png/jpeg 等顺序格式每个条带都会从头解码, 条带越高解码次数越少
+     *
+     * @param bandHeight 条带高度(行)
+     */
+    public static void setBandHeight(int bandHeight) {
+        ImageWatermarkProcessor.bandHeight = Math.max(1, bandHeight);
+    }
+
     @Override
     public Boolean supportType(File file) {
+        // 文件头无法识别的图片格式(如 svg、ico、psd)仍由 Tika 判断
         return FileTypeUtils.isImage(file);
     }
 
@@ -30,49 +89,234 @@ public class ImageWatermarkProcessor extends AbstractWatermarkProcessor {
         return FileTypeUtils.isImage(file);
     }
 
+    @Override
+    public Boolean supportType(FileType fileType) {
+        return fileType == FileType.IMAGE;
+    }
+
     @Override
     public byte[] watermark(WatermarkParam watermarkParam) throws WatermarkException {
-        try {
-            Image srcImage = ImgUtil.toImage(watermarkParam.getFile().getBytes());
-            BufferedImage bufferImg = new BufferedImage(srcImage.getWidth(null), srcImage.getHeight(null), BufferedImage.TYPE_INT_RGB);
-
-            // 1、得到画笔对象
-            Graphics2D g = bufferImg.createGraphics();
-
-            // 2、设置对线段的锯齿状边缘处理
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.drawImage(srcImage.getScaledInstance(srcImage.getWidth(null),
-                    srcImage.getHeight(null),
-                    BufferedImage.SCALE_SMOOTH), 0, 0, null);
-
-            // 水印图片的路径 水印图片一般为gif或者png的，这样可设置透明度
-            ImageIcon imgIcon = new ImageIcon(watermarkParam.getImageFile().getBytes());
-            Image img = imgIcon.getImage();
-
-            // 水印图片的位置
-            if (!watermarkParam.getBespread()) {
-                g.drawImage(img,
-                        srcImage.getWidth(null) / 2 - watermarkParam.getXMove(),
-                        srcImage.getHeight(null) / 2 - watermarkParam.getYMove(), null);
-            } else {
-                for (int height = watermarkParam.getYMove() + imgIcon.getIconHeight();
-                     height < bufferImg.getHeight();
-                     height = height + watermarkParam.getYMove() + imgIcon.getIconHeight()) {
-                    for (int weight = watermarkParam.getXMove() + imgIcon.getIconWidth();
-                         weight < bufferImg.getWidth();
-                         weight = weight + watermarkParam.getXMove() + imgIcon.getIconWidth()) {
-                        g.drawImage(img, weight - imgIcon.getIconWidth(), height
-                                - imgIcon.getIconHeight(), null);
-                    }
+        ImageEncoding encoding = ObjectUtil.isNull(watermarkParam.getEncoding())
+                ? ImageEncoding.builder().build() : watermarkParam.getEncoding();
+        try (ImageInputStream input = new ByteArrayImageInputStream(watermarkParam.getFile().getBytes())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new WatermarkException("无法识别的图片格式");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                String format = StrUtil.blankToDefault(encoding.getFormat(), reader.getFormatName());
+
+                // 超大图片按条带流式处理
+                if ((long) reader.getWidth(0) * reader.getHeight(0) >= streamingThreshold) {
+                    return watermarkBands(reader, watermarkParam, format, encoding);
                 }
+
+                BufferedImage bufferImg = readRgb(reader);
+
+                // 水印图章已按预乘 ARGB 渲染, 按行条带叠加
+                BufferedImage stamp = watermarkParam.getImageFile().getStamp().getImage();
+                ImageUtils.overlay(bufferImg, stamp, getPoints(bufferImg.getWidth(), bufferImg.getHeight(), stamp, watermarkParam),
+                        !Boolean.FALSE.equals(watermarkParam.getParallel()));
+                return write(bufferImg, format, encoding);
+            } finally {
+                reader.dispose();
             }
-            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
-            g.dispose();
-            return ImgUtil.toBytes(bufferImg, ImgUtil.IMAGE_TYPE_PNG);
         } catch (Exception e) {
             log.error(String.format("Failed to add watermark to the image 【%s】", e.getMessage()), e);
             throw new WatermarkException(e.getMessage());
         }
     }
+
+    /**
+     * 解码为 int RGB 图像; 读取器支持时直接解码到该类型, 否则原样复制像素, 不做缩放
+     *
+     * @param reader 已设置输入的读取器
+     * @return {@link BufferedImage}
+     * @throws IOException IO异常
+     */
+    private BufferedImage readRgb(ImageReader reader) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                param.setDestinationType(type);
+                break;
+            }
+        }
+        BufferedImage srcImage = reader.read(0, param);
+        if (srcImage.getType() == BufferedImage.TYPE_INT_RGB) {
+            return srcImage;
+        }
+        BufferedImage bufferImg = new BufferedImage(srcImage.getWidth(), srcImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = bufferImg.createGraphics();
+        g.drawImage(srcImage, 0, 0, null);
+        g.dispose();
+        return bufferImg;
+    }
+
+    /**
+     * 按条带流式添加水印, 每次只解码、叠加一个条带, 写出器按行拉取
+     *
+     * @param reader         已设置输入的读取器
+     * @param watermarkParam 水印参数
+     * @param format         输出格式
+     * @param encoding       编码参数
+     * @return {@link byte[]}
+     * @throws IOException IO异常
+     */
+    private byte[] watermarkBands(ImageReader reader, WatermarkParam watermarkParam,
+                                  String format, ImageEncoding encoding) throws IOException {
+        BufferedImage stamp = watermarkParam.getImageFile().getStamp().getImage();
+        List<Point> points = getPoints(reader.getWidth(0), reader.getHeight(0), stamp, watermarkParam);
+        BandedImage image = new BandedImage(reader, stamp, points, bandHeight,
+                !Boolean.FALSE.equals(watermarkParam.getParallel()));
+        return write(image, format, encoding);
+    }
+
+    /**
+     * 按指定格式及编码参数写出图像, 该格式无法编码时退回 png
+     *
+     * @param image    图像
+     * @param format   输出格式
+     * @param encoding 编码参数
+     * @return {@link byte[]}
+     * @throws IOException IO异常
+     */
+    private byte[] write(RenderedImage image, String format, ImageEncoding encoding) throws IOException {
+        ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(image);
+        ImageWriter writer = getWriter(format, type);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = getWriteParam(writer, encoding);
+            IIOMetadata metadata = getMetadata(writer, type, param, encoding);
+            if (image instanceof BandedImage && writer.canWriteEmpty()) {
+                // 支持分块写出的格式(如 tiff)先写空图像, 再逐条带替换像素
+                BandedImage bandedImage = (BandedImage) image;
+                writer.prepareWriteEmpty(null, type, image.getWidth(), image.getHeight(), metadata, null, param);
+                for (int index = 0; index < bandedImage.getNumBands(); index++) {
+                    BufferedImage band = bandedImage.getBand(index);
+                    int y = bandedImage.getBandY(index);
+                    writer.prepareReplacePixels(0, new Rectangle(0, y, band.getWidth(), band.getHeight()));
+                    ImageWriteParam replaceParam = writer.getDefaultWriteParam();
+                    replaceParam.setDestinationOffset(new Point(0, y));
+                    writer.replacePixels(band, replaceParam);
+                    writer.endReplacePixels();
+                }
+                writer.endWriteEmpty();
+            } else {
+                writer.write(null, new IIOImage(image, null, metadata), param);
+            }
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 获取可编码该图像的写出器
+     *
+     * @param format 输出格式
+     * @param type   图像类型
+     * @return {@link ImageWriter}
+     */
+    private ImageWriter getWriter(String format, ImageTypeSpecifier type) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWriters(type, format);
+        if (writers.hasNext()) {
+            return writers.next();
+        }
+        log.warn("The image format {} cannot be written, falling back to png", format);
+        return ImageIO.getImageWritersByFormatName(ImgUtil.IMAGE_TYPE_PNG).next();
+    }
+
+    /**
+     * 编码参数: jpeg 质量与渐进式, png 压缩级别
+     *
+     * @param writer   写出器
+     * @param encoding 编码参数
+     * @return {@link ImageWriteParam}
+     */
+    private ImageWriteParam getWriteParam(ImageWriter writer, ImageEncoding encoding) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (isJpeg(writer)) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(0F, Math.min(1F, encoding.getQuality())));
+            if (param.canWriteProgressive()) {
+                param.setProgressiveMode(encoding.getProgressive()
+                        ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+            }
+        } else if (isPng(writer) && param.canWriteCompressed()) {
+            // png 编码器按 9 * (1 - quality) 换算 deflate 压缩级别
+            int level = Math.max(0, Math.min(9, encoding.getCompressionLevel()));
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(1F - level / 9F);
+        }
+        return param;
+    }
+
+    /**
+     * 图像元数据, jpeg 按需关闭色度抽样(亮度分量采样因子改为 1x1)
+     *
+     * @param writer   写出器
+     * @param type     图像类型
+     * @param param    编码参数
+     * @param encoding 编码参数
+     * @return {@link IIOMetadata} 无需调整时返回 null
+     * @throws IIOInvalidTreeException 元数据异常
+     */
+    private IIOMetadata getMetadata(ImageWriter writer, ImageTypeSpecifier type, ImageWriteParam param,
+                                    ImageEncoding encoding) throws IIOInvalidTreeException {
+        if (!isJpeg(writer) || encoding.getChromaSubsampling()) {
+            return null;
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(type, param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = root.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", "1");
+            component.setAttribute("VsamplingFactor", "1");
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+        return metadata;
+    }
+
+    private boolean isJpeg(ImageWriter writer) {
+        return ArrayUtil.containsIgnoreCase(writer.getOriginatingProvider().getFormatNames(), ImgUtil.IMAGE_TYPE_JPEG);
+    }
+
+    private boolean isPng(ImageWriter writer) {
+        return ArrayUtil.containsIgnoreCase(writer.getOriginatingProvider().getFormatNames(), ImgUtil.IMAGE_TYPE_PNG);
+    }
+
+    /**
+     * 计算水印图章的位置
+     *
+     * @param width          原图宽度
+     * @param height         原图高度
+     * @param stamp          水印图章
+     * @param watermarkParam 水印参数
+     * @return {@link List}<{@link Point}> 图章左上角坐标
+     */
+    private List<Point> getPoints(int width, int height, BufferedImage stamp, WatermarkParam watermarkParam) {
+        List<Point> points = new ArrayList<>();
+        if (!watermarkParam.getBespread()) {
+            points.add(new Point(width / 2 - watermarkParam.getXMove(),
+                    height / 2 - watermarkParam.getYMove()));
+        } else {
+            for (int y = watermarkParam.getYMove() + stamp.getHeight();
+                 y < height;
+                 y = y + watermarkParam.getYMove() + stamp.getHeight()) {
+                for (int weight = watermarkParam.getXMove() + stamp.getWidth();
+                     weight < width;
+                     weight = weight + watermarkParam.getXMove() + stamp.getWidth()) {
+                    points.add(new Point(weight - stamp.getWidth(), y - stamp.getHeight()));
+                }
+            }
+        }
+        return points;
+    }
 }
@@ -1,20 +1,43 @@
 package cn.darkjrong.watermark.factory;
 
 import cn.darkjrong.watermark.FileTypeUtils;
+import cn.darkjrong.watermark.ImageUtils;
+import cn.darkjrong.watermark.LicenseUtils;
+import cn.darkjrong.watermark.MemoryMetrics;
+import cn.darkjrong.watermark.ParallelUtils;
+import cn.darkjrong.watermark.domain.FontAttribute;
 import cn.darkjrong.watermark.domain.ImageFile;
 import cn.darkjrong.watermark.domain.SrcFile;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.domain.WatermarkStamp;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.img.ImgUtil;
+import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.ObjectUtil;
 import com.aspose.pdf.*;
+import com.aspose.pdf.operators.ConcatenateMatrix;
+import com.aspose.pdf.operators.Do;
+import com.aspose.pdf.operators.GRestore;
+import com.aspose.pdf.operators.GSave;
+import com.aspose.pdf.tagged.logicalstructure.elements.StructTreeRootElement;
+import com.aspose.pdf.optimization.OptimizationOptions;
 import lombok.extern.slf4j.Slf4j;
 
-import java.awt.Image;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * PDF水印处理器
@@ -25,59 +48,251 @@ import java.io.InputStream;
 @Slf4j
 public class PdfWatermarkProcessor extends AbstractWatermarkProcessor {
 
+    /**
+     * 是否按页面区间并行添加水印
+     */
+    private static volatile boolean parallelPages = Boolean.FALSE;
+
+    /**
+     * 并行时每段的最少页数
+     */
+    private static volatile int minChunkPages = 64;
+
+    /**
+     * 输出到文件时是否以增量更新方式保存
+     */
+    private static volatile boolean incrementalSave = Boolean.FALSE;
+
+    /**
+     * 文本水印是否以矢量文本绘制
+     */
+    private static volatile boolean vectorText = Boolean.TRUE;
+
+    /**
+     * 输出到文件时按页面窗口处理的最小文件大小(字节)
+     */
+    private static volatile long streamingThreshold = 256L * 1024 * 1024;
+
+    /**
+     * 每个页面窗口的页数
+     */
+    private static volatile int windowPages = 32;
+
+    /**
+     * 按窗口处理时缩小窗口的已用堆内存比例(占最大堆内存), 只是调节窗口大小的阈值, 不是硬上限
+     */
+    private static volatile double heapRatio = 0.75D;
+
+    /**
+     * 按窗口处理的内存统计
+     */
+    private static final MemoryMetrics METRICS = new MemoryMetrics();
+
+    /**
+     * 依次查找的水印字体, 均可显示中文
+     */
+    private static final String[] CJK_FONTS = {ImageUtils.FONT_NAME, "SimSun", "Microsoft YaHei", "SimHei",
+            "Noto Sans CJK SC", "Source Han Sans SC", "WenQuanYi Micro Hei", "Arial Unicode MS"};
+
+    public static boolean isParallelPages() {
+        return parallelPages;
+    }
+
+    /**
+     * 开启后, 页数足够的文档按页面区间拆分, 在 {@link ParallelUtils} 线程池中并行添加水印后按顺序放回原文档,
+     * 分段数不超过 {@link ParallelUtils#getParallelism()}; 含书签、表单、命名目标、内部链接、打开动作或标签结构树的文档,
+     * 以及矢量文本水印仍按顺序处理
+     *
+     * @param parallelPages 是否开启
+     */
+    public static void setParallelPages(boolean parallelPages) {
+        PdfWatermarkProcessor.parallelPages = parallelPages;
+    }
+
+    public static int getMinChunkPages() {
+        return minChunkPages;
+    }
+
+    /**
+     * 设置并行时每段的最少页数
+     *
+     * @param minChunkPages 页数
+     */
+    public static void setMinChunkPages(int minChunkPages) {
+        PdfWatermarkProcessor.minChunkPages = Math.max(1, minChunkPages);
+    }
+
+    public static boolean isIncrementalSave() {
+        return incrementalSave;
+    }
+
+    /**
+     * 开启后, 原文件为 PDF 且输出到文件时, 原文件内容原样复制到目标文件, 水印对象与交叉引用表以增量更新方式追加在其后
+     *
+     * @param incrementalSave 是否开启
+     */
+    public static void setIncrementalSave(boolean incrementalSave) {
+        PdfWatermarkProcessor.incrementalSave = incrementalSave;
+    }
+
+    public static boolean isVectorText() {
+        return vectorText;
+    }
+
+    /**
+     * 开启后, 文本水印以 {@link TextStamp} 绘制为页面文本, 嵌入字体子集, 不再栅格化为图片;
+     * 关闭后按图片水印处理
+     *
+     * @param vectorText 是否开启
+     */
+    public static void setVectorText(boolean vectorText) {
+        PdfWatermarkProcessor.vectorText = vectorText;
+    }
+
+    public static long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * 设置按页面窗口处理的最小文件大小; 原文件为 PDF 且输出到文件时, 超过该值的文档直接从原文件路径打开,
+     * 按窗口添加水印并释放页面内存, 结果直接写入目标文件, 不再将原文件与结果读入字节数组
+     *
+     * @param streamingThreshold 字节数
+     */
+    public static void setStreamingThreshold(long streamingThreshold) {
+        PdfWatermarkProcessor.streamingThreshold = Math.max(0, streamingThreshold);
+    }
+
+    public static int getWindowPages() {
+        return windowPages;
+    }
+
+    /**
+     * 设置每个页面窗口的页数
+     *
+     * @param windowPages 页数
+     */
+    public static void setWindowPages(int windowPages) {
+        PdfWatermarkProcessor.windowPages = Math.max(1, windowPages);
+    }
+
+    public static double getHeapRatio() {
+        return heapRatio;
+    }
+
+    /**
+     * 设置缩小窗口的已用堆内存比例, 窗口处理完后采样的已用堆内存超过该比例时后续窗口页数减半, 最少 1 页.
+     * <p>
+     * 该比例不是硬上限: 采样值包含尚未回收的垃圾与其他并发任务的占用, 只在窗口结束后检查,
+     * 窗口减到 1 页后不再缩小, 单页仍可能超过; 需要限制内存时应同时通过 -Xmx 设置最大堆内存
+     *
+     * @param heapRatio 占最大堆内存的比例
+     */
+    public static void setHeapRatio(double heapRatio) {
+        PdfWatermarkProcessor.heapRatio = Math.min(1D, Math.max(0D, heapRatio));
+    }
+
+    /**
+     * 获取按窗口处理的内存统计
+     *
+     * @return {@link MemoryMetrics}
+     */
+    public static MemoryMetrics getMetrics() {
+        return METRICS;
+    }
+
+    @Override
+    public Boolean supportText() {
+        return vectorText;
+    }
+
     @Override
     public Boolean supportType(File file) {
-        return FileTypeUtils.isPdf(file) || FileTypeUtils.isHtml(file);
+        return supportType(FileTypeUtils.detect(file));
     }
 
     @Override
     public Boolean supportType(byte[] file) {
-        return FileTypeUtils.isPdf(file) || FileTypeUtils.isHtml(file);
+        return supportType(FileTypeUtils.detect(file));
+    }
+
+    @Override
+    public Boolean supportType(FileType fileType) {
+        return fileType == FileType.PDF || fileType == FileType.HTML;
+    }
+
+    @Override
+    public void addWatermark(WatermarkParam watermarkParam, File target) throws WatermarkException {
+        File source = watermarkParam.getFile().getFile();
+        if (!FileUtil.exist(source) || watermarkParam.getFile().getFileType() != FileType.PDF
+                || FileUtil.equals(source, target)) {
+            super.addWatermark(watermarkParam, target);
+            return;
+        }
+        boolean windowed = FileUtil.size(source) >= streamingThreshold;
+        if (!incrementalSave && !windowed) {
+            super.addWatermark(watermarkParam, target);
+            return;
+        }
+        LicenseUtils.verificationLicense();
+        Document pdfDocument = null;
+        Path temp = null;
+        try {
+            // 先写入同目录临时文件, 关闭文档后再改名, 失败时不留下不完整的目标文件, 也不触碰原有的目标文件
+            File parent = FileUtil.mkParentDirs(target);
+            temp = Files.createTempFile(parent.toPath(), target.getName(), ".tmp");
+            if (incrementalSave) {
+                copy(source, temp.toFile());
+                pdfDocument = new Document(temp.toString());
+            } else {
+                pdfDocument = new Document(source.getAbsolutePath());
+            }
+            watermark(pdfDocument, getStamp(watermarkParam), watermarkParam, windowed, incrementalSave);
+
+            if (incrementalSave) {
+                // 以打开的文件为目标, 仅追加变更对象
+                pdfDocument.save();
+            } else {
+                pdfDocument.save(temp.toString());
+            }
+            pdfDocument.close();
+            pdfDocument = null;
+            Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            log.error(String.format("Description Failed to add watermark to PDF 【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
+        } finally {
+            if (ObjectUtil.isNotNull(pdfDocument)) {
+                pdfDocument.close();
+            }
+            if (ObjectUtil.isNotNull(temp)) {
+                FileUtil.del(temp.toFile());
+            }
+        }
     }
 
     @Override
     public byte[] watermark(WatermarkParam watermarkParam) throws WatermarkException {
         InputStream inputStream = null;
-        ByteArrayOutputStream outputStream = null;
-        InputStream imageInput = null;
+        Document pdfDocument = null;
         SrcFile file = watermarkParam.getFile();
-        ImageFile imageFile = watermarkParam.getImageFile();
         try {
-            inputStream = getInputStream(file.getBytes());
-            imageInput = new ByteArrayInputStream(imageFile.getBytes());
-
-            Document pdfDocument = new Document(inputStream);
-            ImageStamp imageStamp = new ImageStamp(imageInput);
-
-            Image image = ImgUtil.toImage(imageFile.getBytes());
+            // html 直接加载为 PDF 文档, 不再先转换为 PDF 字节数组
+            boolean html = file.getFileType() == FileType.HTML;
+            inputStream = getSourceStream(file);
+            byte[] source = IoUtil.readBytes(inputStream);
+            pdfDocument = html ? new Document(new ByteArrayInputStream(source), new HtmlLoadOptions())
+                    : new Document(new ByteArrayInputStream(source));
 
-            //设置水印背景的宽高，还有透明度
-            imageStamp.setHeight(image.getWidth(null));
-            imageStamp.setWidth(image.getHeight(null));
-            imageStamp.setOpacity(1 - watermarkParam.getAlpha());
+            byte[] stamp = getStamp(watermarkParam);
 
-            for (int i = 1; i <= pdfDocument.getPages().size(); i++) {
-                Page page = pdfDocument.getPages().get_Item(i);
-                PageInfo pageInfo = page.getPageInfo();
-                if (!watermarkParam.getBespread()) {
-                    imageStamp.setXIndent(pageInfo.getWidth() / 2 - watermarkParam.getXMove());
-                    imageStamp.setYIndent(pageInfo.getHeight() / 2 - watermarkParam.getYMove());
-                    page.addStamp(imageStamp);
-                } else {
-                    //让每一页的边距为0，也可以自定义设置
-                    pageInfo.setMargin(new MarginInfo(5, 5, 5, 5));
-                    for (double y = 0; y < pageInfo.getHeight(); y = y + imageStamp.getHeight() + watermarkParam.getYMove()) {
-                        for (double x = 0; x < pageInfo.getWidth(); x = x + imageStamp.getWidth() + watermarkParam.getXMove()) {
-                            //设置图片位置的x,y轴，通过双重循环来达到铺满背景的目的
-                            imageStamp.setXIndent(x);
-                            imageStamp.setYIndent(y);
-                            //添加水印
-                            page.addStamp(imageStamp);
-                        }
-                    }
-                }
+            int chunks = html ? 1 : getChunks(pdfDocument, stamp, watermarkParam);
+            if (chunks > 1) {
+                watermarkChunks(pdfDocument, chunks, stamp, watermarkParam);
+            } else {
+                watermark(pdfDocument, stamp, watermarkParam);
             }
-            outputStream = new ByteArrayOutputStream();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             pdfDocument.save(outputStream);
             return outputStream.toByteArray();
         } catch (Exception e) {
@@ -85,8 +300,446 @@ public class PdfWatermarkProcessor extends AbstractWatermarkProcessor {
             throw new WatermarkException(e.getMessage());
         } finally {
             IoUtil.close(inputStream);
-            IoUtil.close(outputStream);
-            IoUtil.close(imageInput);
+            if (ObjectUtil.isNotNull(pdfDocument)) {
+                pdfDocument.close();
+            }
+        }
+    }
+
+    /**
+     * 为文档的所有页面添加水印
+     *
+     * @param pdfDocument    文档
+     * @param stamp          水印图片, 为空时绘制矢量文本
+     * @param watermarkParam 水印参数
+     * @return {@link String[]} 各页水印图片的资源名称, 见 {@link #watermark(Document, byte[], WatermarkParam, boolean, boolean)}
+     */
+    private String[] watermark(Document pdfDocument, byte[] stamp, WatermarkParam watermarkParam) {
+        return watermark(pdfDocument, stamp, watermarkParam, Boolean.FALSE, Boolean.FALSE);
+    }
+
+    /**
+     * 为文档的所有页面添加水印
+     * <p>
+     * 水印图片只在首个页面加入一次, 其余页面资源引用同一个图片对象, 文件大小不随页数、水印数增长;
+     * 按窗口处理时, 每个窗口添加完水印后释放窗口内页面的内存并采样已用堆内存, 超过阈值时窗口减半(见 {@link #setHeapRatio(double)})
+     *
+     * @param pdfDocument    文档
+     * @param stamp          水印图片, 为空时绘制矢量文本
+     * @param watermarkParam 水印参数
+     * @param windowed       是否按页面窗口处理
+     * @param incremental    是否以增量更新方式保存, 此时不再改写原有字体与资源, 只追加水印对象
+     * @return {@link String[]} 按页序的水印图片资源名称, 未添加图片的页面为空
+     */
+    private String[] watermark(Document pdfDocument, byte[] stamp, WatermarkParam watermarkParam,
+                               boolean windowed, boolean incremental) {
+        TextStamp textStamp = ObjectUtil.isNull(stamp) ? createTextStamp(watermarkParam) : null;
+        FontAttribute text = ObjectUtil.isNull(textStamp) ? null
+                : ImageUtils.getTextSize(watermarkParam.getImageFile().getText(), watermarkParam.getFontSize());
+        java.awt.Rectangle size = getSize(watermarkParam);
+        double width = size.getWidth();
+        double height = size.getHeight();
+        int pages = pdfDocument.getPages().size();
+        int window = windowed ? windowPages : Math.max(1, pages);
+        long threshold = (long) (Runtime.getRuntime().maxMemory() * heapRatio);
+        long peak = 0;
+        String[] names = new String[pages];
+        XImage image = null;
+        int from = 1;
+        while (from <= pages) {
+            int to = Math.min(pages, from + window - 1);
+            for (int i = from; i <= to; i++) {
+                Page page = pdfDocument.getPages().get_Item(i);
+                double[] layout = StampLayout.get(page.getRect(), page.getCropBox(), page.getRotate(),
+                        width, height, watermarkParam);
+                if (layout.length == 0) {
+                    continue;
+                }
+                String name = null;
+                if (ObjectUtil.isNull(textStamp)) {
+                    XImage added = addImage(page, stamp, image);
+                    image = ObjectUtil.defaultIfNull(image, added);
+                    name = added.getName();
+                    names[i - 1] = name;
+                    isolate(page);
+                } else {
+                    // 页面顺时针旋转显示, 文本按相同角度逆向补偿后保持与未旋转页面一致的朝向
+                    textStamp.setRotateAngle(-watermarkParam.getDegree() + 90 * StampLayout.quarter(page.getRotate()));
+                }
+                for (int j = 0; j < layout.length; j += 6) {
+                    // 各处引用同一图片资源来达到铺满背景的目的
+                    draw(page, name, textStamp, text, layout, j);
+                }
+            }
+            if (windowed) {
+                for (int i = from; i <= to; i++) {
+                    pdfDocument.getPages().get_Item(i).freeMemory();
+                }
+                long used = METRICS.recordWindow(to - from + 1);
+                peak = Math.max(peak, used);
+                if (used > threshold && window > 1) {
+                    window = Math.max(1, window / 2);
+                    log.warn("Heap usage {} exceeds threshold {}, PDF page window reduced to {}", used, threshold, window);
+                }
+            }
+            from = to + 1;
+        }
+
+        if (windowed) {
+            METRICS.recordDocument();
+            log.debug("PDF of {} pages watermarked, peak heap {}", pages, peak);
+            return names;
+        }
+        if (ObjectUtil.isNull(textStamp) || incremental) {
+            return names;
+        }
+
+        // 各页文本水印的字体资源内容相同, 合并为同一个对象
+        OptimizationOptions options = new OptimizationOptions();
+        options.setLinkDuplcateStreams(true);
+        pdfDocument.optimizeResources(options);
+        return names;
+    }
+
+    /**
+     * 在指定区域绘制水印, 文本水印居中于区域内
+     *
+     * @param page      页面
+     * @param name      图片资源名称
+     * @param textStamp 文本水印, 为空时绘制图片
+     * @param text      文本水印尺寸(含边距, 未旋转)
+     * @param layout    布局, 见 {@link StampLayout#get}
+     * @param offset    水印变换矩阵在布局中的起始下标
+     */
+    private void draw(Page page, String name, TextStamp textStamp, FontAttribute text, double[] layout, int offset) {
+        if (ObjectUtil.isNull(textStamp)) {
+            drawImage(page, name, layout, offset);
+            return;
+        }
+        // 以文本中心对齐区域中心, 旋转绕文本中心进行
+        double x = layout[offset + 4] + (layout[offset] + layout[offset + 2]) / 2;
+        double y = layout[offset + 5] + (layout[offset + 1] + layout[offset + 3]) / 2;
+        textStamp.setXIndent(x - text.getWidth() / 2D + 10);
+        textStamp.setYIndent(y - text.getHeight() / 2D + 10);
+        page.addStamp(textStamp);
+    }
+
+    /**
+     * 创建文本水印, 字体、颜色、角度与透明度与栅格化的图章一致
+     *
+     * @param watermarkParam 水印参数
+     * @return {@link TextStamp}
+     */
+    private TextStamp createTextStamp(WatermarkParam watermarkParam) {
+        java.awt.Color color = watermarkParam.getColor();
+        Float alpha = watermarkParam.getAlpha();
+
+        String text = watermarkParam.getImageFile().getText();
+        TextStamp textStamp = new TextStamp(text);
+        TextState textState = textStamp.getTextState();
+        Font font = findFont();
+        if (ObjectUtil.isNotNull(font)) {
+            // 只嵌入水印字体用到的字形, 不改动文档原有字体
+            font.setEmbedded(Boolean.TRUE);
+            font.setSubset(Boolean.TRUE);
+            textState.setFont(font);
+        } else if (!StandardCharsets.ISO_8859_1.newEncoder().canEncode(text)) {
+            // 默认字体没有中文等字形, 绘制出来只是缺字方框
+            throw new WatermarkException(String.format("未找到可显示水印文本【%s】的字体, 请安装中文字体或关闭矢量文本水印", text));
+        }
+        textState.setFontSize(watermarkParam.getFontSize());
+        textState.setForegroundColor(Color.fromArgb(color.getRed(), color.getGreen(), color.getBlue()));
+
+        // 图章按顺时针旋转, PDF 坐标系中为逆时针角度
+        textStamp.setRotateAngle(-watermarkParam.getDegree());
+        // 图章绘制文本时已乘透明度, 嵌入时再按 1 - 透明度 合成
+        textStamp.setOpacity(alpha * (1 - alpha));
+        return textStamp;
+    }
+
+    /**
+     * 查找可显示中文的水印字体, 都找不到时返回空, 使用默认字体
+     *
+     * @return {@link Font}
+     */
+    private Font findFont() {
+        for (String name : CJK_FONTS) {
+            try {
+                return FontRepository.findFont(name);
+            } catch (Exception e) {
+                log.debug("Watermark font 【{}】 not found, {}", name, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 计算单个水印(旋转后)的尺寸
+     *
+     * @param watermarkParam 水印参数
+     * @return {@link java.awt.Rectangle}
+     */
+    private java.awt.Rectangle getSize(WatermarkParam watermarkParam) {
+        ImageFile imageFile = watermarkParam.getImageFile();
+        if (ObjectUtil.isNotNull(imageFile.getStamp())) {
+            BufferedImage image = imageFile.getStamp().getImage();
+            return new java.awt.Rectangle(image.getWidth(), image.getHeight());
+        }
+        FontAttribute attribute = ImageUtils.getTextSize(imageFile.getText(), watermarkParam.getFontSize());
+        return ImageUtils.calcRotatedSize(new java.awt.Rectangle(attribute.getWidth(), attribute.getHeight()),
+                watermarkParam.getDegree());
+    }
+
+    /**
+     * 计算并行处理的分段数
+     * <p>
+     * 未开启并行、页数不足两段时返回 1, 按顺序处理; 页面拆分合并后引用原页面的结构无法保留,
+     * 文档含书签、表单、命名目标、内部链接、打开动作或标签结构树时同样返回 1;
+     * 矢量文本水印需要整个文档合并字体资源, 也按顺序处理
+     *
+     * @param pdfDocument    文档
+     * @param stamp          水印图片, 为空时绘制矢量文本
+     * @param watermarkParam 水印参数
+     * @return int 分段数
+     */
+    private int getChunks(Document pdfDocument, byte[] stamp, WatermarkParam watermarkParam) {
+        if (!parallelPages || ObjectUtil.isNull(stamp) || Boolean.FALSE.equals(watermarkParam.getParallel())
+                || !ParallelUtils.isEnabled()) {
+            return 1;
+        }
+        int pages = pdfDocument.getPages().size();
+        if (pages < minChunkPages * 2 || !isSplittable(pdfDocument)) {
+            return 1;
+        }
+        return Math.max(1, Math.min(ParallelUtils.getParallelism(), pages / minChunkPages));
+    }
+
+    /**
+     * 文档是否可按页面拆分合并
+     * <p>
+     * 元数据、页面标签、附件位于文档目录中, 合并回原文档后保留; 其余引用页面对象的结构会失效
+     *
+     * @param pdfDocument 文档
+     * @return boolean
+     */
+    private boolean isSplittable(Document pdfDocument) {
+        if (pdfDocument.getOutlines().size() > 0 || pdfDocument.getForm().size() > 0
+                || pdfDocument.getNamedDestinations().size() > 0 || ObjectUtil.isNotNull(pdfDocument.getOpenAction())) {
+            return false;
+        }
+        StructTreeRootElement root = pdfDocument.getTaggedContent().getStructTreeRootElement();
+        if (ObjectUtil.isNotNull(root) && root.getChildElements().size() > 0) {
+            return false;
+        }
+        for (Page page : pdfDocument.getPages()) {
+            for (Annotation annotation : page.getAnnotations()) {
+                if (annotation instanceof LinkAnnotation
+                        && !(((LinkAnnotation) annotation).getAction() instanceof GoToURIAction)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按页面区间将已加载文档的页面复制到独立的 {@link Document}, 并行添加图片水印后按顺序放回原文档
+     * <p>
+     * 原文档只解析一次, 文档信息、XMP 元数据、页面标签、附件随原文档保留; 各段先保存再重新加载,
+     * 并行时不与原文档共享任何对象. 放回后各页的水印图片改为引用同一个图片对象, 资源名称与顺序处理时一致,
+     * 不对文档原有的资源做任何合并
+     *
+     * @param pdfDocument    文档
+     * @param chunks         分段数
+     * @param stamp          水印图片
+     * @param watermarkParam 水印参数
+     */
+    private void watermarkChunks(Document pdfDocument, int chunks, byte[] stamp, WatermarkParam watermarkParam) {
+        PageCollection pages = pdfDocument.getPages();
+        int size = pages.size();
+        Document[] parts = new Document[chunks];
+        String[][] names = new String[chunks][];
+        try {
+            for (int index = 0; index < chunks; index++) {
+                int from = (int) ((long) size * index / chunks) + 1;
+                int to = (int) ((long) size * (index + 1) / chunks);
+                parts[index] = detach(pages, from, to);
+            }
+            ParallelUtils.forEachIndex(chunks, Boolean.TRUE,
+                    index -> names[index] = watermark(parts[index], stamp, watermarkParam));
+
+            pages.delete();
+            for (Document part : parts) {
+                for (Page page : part.getPages()) {
+                    pages.add(page);
+                }
+            }
+        } finally {
+            for (Document part : parts) {
+                if (ObjectUtil.isNotNull(part)) {
+                    part.close();
+                }
+            }
+        }
+        share(pages, names);
+    }
+
+    /**
+     * 将页面区间复制到新文档, 保存后重新加载, 与原文档不再共享任何对象
+     *
+     * @param pages 原文档页面
+     * @param from  起始页(含)
+     * @param to    结束页(含)
+     * @return {@link Document}
+     */
+    private Document detach(PageCollection pages, int from, int to) {
+        Document copy = new Document();
+        try {
+            for (int i = from; i <= to; i++) {
+                copy.getPages().add(pages.get_Item(i));
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            copy.save(outputStream);
+            return new Document(new ByteArrayInputStream(outputStream.toByteArray()));
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * 各段分别加入的水印图片改为引用第一个水印页面的图片对象
+     * <p>
+     * 先删除本页的图片资源再加入共享图片, 资源字典回到加入水印前的状态, 分配到的名称与原名称一致;
+     * 名称不一致时改写本页引用该图片的绘制指令
+     *
+     * @param pages 合并后的页面
+     * @param names 各段按页序的水印图片资源名称
+     */
+    private void share(PageCollection pages, String[][] names) {
+        XImage image = null;
+        int number = 0;
+        for (String[] part : names) {
+            for (String name : part) {
+                number++;
+                if (ObjectUtil.isNull(name)) {
+                    continue;
+                }
+                Page page = pages.get_Item(number);
+                XImageCollection images = page.getResources().getImages();
+                if (ObjectUtil.isNull(image)) {
+                    image = images.get_Item(name);
+                    continue;
+                }
+                images.delete(name);
+                images.add(image);
+                String shared = images.get_Item(images.size()).getName();
+                if (!name.equals(shared)) {
+                    rename(page, name, shared);
+                }
+            }
         }
     }
+
+    /**
+     * 改写页面中引用指定图片资源的绘制指令
+     *
+     * @param page 页面
+     * @param from 原资源名称
+     * @param to   新资源名称
+     */
+    private void rename(Page page, String from, String to) {
+        OperatorCollection contents = page.getContents();
+        for (int i = 1; i <= contents.size(); i++) {
+            Operator operator = contents.get_Item(i);
+            if (operator instanceof Do && from.equals(((Do) operator).getName())) {
+                contents.delete(i);
+                contents.insert(i, new Do(to));
+            }
+        }
+    }
+
+    /**
+     * 原样复制文件, 由内核直接在通道间传输
+     *
+     * @param source 原文件
+     * @param target 目标文件
+     * @throws IOException IO异常
+     */
+    private void copy(File source, File target) throws IOException {
+        FileUtil.mkParentDirs(target);
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /**
+     * 生成水印图片, 将不透明度直接合入图片的 alpha 通道, 各处引用无需再设置透明度
+     *
+     * @param watermarkParam 水印参数
+     * @return {@link byte[]} png 字节数组, 绘制矢量文本时为空
+     */
+    private byte[] getStamp(WatermarkParam watermarkParam) {
+        WatermarkStamp watermarkStamp = watermarkParam.getImageFile().getStamp();
+        if (ObjectUtil.isNull(watermarkStamp)) {
+            return null;
+        }
+        BufferedImage image = watermarkStamp.getImage();
+        Float alpha = watermarkParam.getAlpha();
+        BufferedImage copy = ImgUtil.copyImage(image, BufferedImage.TYPE_INT_ARGB_PRE);
+        ImageUtils.changeOpacity(copy, 1 - alpha);
+        return ImgUtil.toBytes(copy, ImgUtil.IMAGE_TYPE_PNG);
+    }
+
+    /**
+     * 将水印图片加入页面资源, 已加入过时引用同一个图片对象
+     *
+     * @param page  页面
+     * @param stamp 水印图片
+     * @param image 已加入的图片对象, 为空时由水印图片新建
+     * @return {@link XImage} 页面中的图片资源
+     */
+    private XImage addImage(Page page, byte[] stamp, XImage image) {
+        XImageCollection images = page.getResources().getImages();
+        if (ObjectUtil.isNull(image)) {
+            images.add(new ByteArrayInputStream(stamp));
+        } else {
+            images.add(image);
+        }
+        return images.get_Item(images.size());
+    }
+
+    /**
+     * 以 q/Q 包裹页面原有内容, 原内容遗留的图形状态(变换矩阵、颜色等)不影响其后追加的水印
+     *
+     * @param page 页面
+     */
+    private void isolate(Page page) {
+        OperatorCollection contents = page.getContents();
+        if (contents.size() > 0) {
+            contents.insert(1, new GSave());
+            contents.add(new GRestore());
+        }
+    }
+
+    /**
+     * 在页面内容流中引用水印图片
+     *
+     * @param page   页面
+     * @param name   图片资源名称
+     * @param layout 布局, 见 {@link StampLayout#get}
+     * @param offset 水印变换矩阵在布局中的起始下标
+     */
+    private void drawImage(Page page, String name, double[] layout, int offset) {
+        OperatorCollection contents = page.getContents();
+        contents.add(new GSave());
+        contents.add(new ConcatenateMatrix(new Matrix(Arrays.copyOfRange(layout, offset, offset + 6))));
+        contents.add(new Do(name));
+        contents.add(new GRestore());
+    }
 }
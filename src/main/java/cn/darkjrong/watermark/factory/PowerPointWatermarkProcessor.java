@@ -1,21 +1,31 @@
 package cn.darkjrong.watermark.factory;
 
 import cn.darkjrong.watermark.FileTypeUtils;
+import cn.darkjrong.watermark.ImageUtils;
+import cn.darkjrong.watermark.LicenseUtils;
 import cn.darkjrong.watermark.domain.ImageFile;
+import cn.darkjrong.watermark.domain.SrcFile;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.img.ImgUtil;
+import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.IoUtil;
 import cn.hutool.core.util.ObjectUtil;
+import cn.hutool.core.util.StrUtil;
 import com.aspose.slides.*;
 import lombok.extern.slf4j.Slf4j;
 
+import java.awt.Point;
 import java.awt.geom.Dimension2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Power Point 水印处理器
@@ -26,37 +36,148 @@ import java.io.File;
 @Slf4j
 public class PowerPointWatermarkProcessor extends AbstractWatermarkProcessor {
 
+    /**
+     * 铺满时是否合成为一张与幻灯片等大的透明图片, 默认关闭
+     */
+    private static volatile boolean overlay = Boolean.FALSE;
+
+    /**
+     * 内存中大对象(图片、音视频等)的最大字节数
+     */
+    private static volatile long maxBlobsBytesInMemory = 64L * 1024 * 1024;
+
+    /**
+     * 大对象临时文件目录, 为空时使用系统临时目录
+     */
+    private static volatile String tempFilesRootPath;
+
+    public static boolean isOverlay() {
+        return overlay;
+    }
+
+    /**
+     * 开启后, 铺满的水印预先合成为一张与幻灯片等大的透明图片, 每个母版只添加一个形状,
+     * 不再为每个水印添加一个形状, 水印不能再单独选中、编辑; 默认关闭, 逐个添加
+     *
+     * @param overlay 是否开启
+     */
+    public static void setOverlay(boolean overlay) {
+        PowerPointWatermarkProcessor.overlay = overlay;
+    }
+
+    public static long getMaxBlobsBytesInMemory() {
+        return maxBlobsBytesInMemory;
+    }
+
+    /**
+     * 设置从文件路径加载时内存中大对象的最大字节数, 超出部分转存临时文件
+     *
+     * @param maxBlobsBytesInMemory 字节数
+     */
+    public static void setMaxBlobsBytesInMemory(long maxBlobsBytesInMemory) {
+        PowerPointWatermarkProcessor.maxBlobsBytesInMemory = Math.max(0, maxBlobsBytesInMemory);
+    }
+
+    public static String getTempFilesRootPath() {
+        return tempFilesRootPath;
+    }
+
+    /**
+     * 设置大对象临时文件目录
+     *
+     * @param tempFilesRootPath 目录, 为空时使用系统临时目录
+     */
+    public static void setTempFilesRootPath(String tempFilesRootPath) {
+        PowerPointWatermarkProcessor.tempFilesRootPath = tempFilesRootPath;
+    }
+
     @Override
     public Boolean supportType(File file) {
-        return FileTypeUtils.isPpts(file);
+        return supportType(FileTypeUtils.detect(file));
     }
 
     @Override
     public Boolean supportType(byte[] file) {
-        return FileTypeUtils.isPpts(file);
+        return supportType(FileTypeUtils.detect(file));
     }
 
     @Override
-    protected byte[] watermark(WatermarkParam watermarkParam) throws WatermarkException {
+    public Boolean supportType(FileType fileType) {
+        return fileType == FileType.PPTX || fileType == FileType.PPT;
+    }
 
-        ByteArrayOutputStream out = null;
-        ByteArrayInputStream in = new ByteArrayInputStream(watermarkParam.getFile().getBytes());
+    @Override
+    public void addWatermark(WatermarkParam watermarkParam, File target) throws WatermarkException {
+        SrcFile file = watermarkParam.getFile();
+        if (!isFromPath(file) || FileUtil.equals(file.getFile(), target)) {
+            super.addWatermark(watermarkParam, target);
+            return;
+        }
+        LicenseUtils.verificationLicense();
+        // 直接写入目标文件, 不再经过字节数组; 原文件加载期间被锁定, 不能作为目标
+        // 先写入同目录临时文件, 完成后再改名, 失败时不留下不完整的目标文件, 也不触碰原有的目标文件
+        try {
+            File parent = FileUtil.mkParentDirs(target);
+            Path temp = Files.createTempFile(parent.toPath(), target.getName(), ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                    watermark(watermarkParam, out);
+                }
+                Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.error(String.format("A watermark is incorrectly added to the PPT 【%s】", e.getMessage()), e);
+            throw new WatermarkException(e.getMessage());
+        }
+    }
 
-        Presentation pres = new Presentation(in);
-        IMasterSlideCollection presMasters = pres.getMasters();
-        ImageFile imageFile = watermarkParam.getImageFile();
+    @Override
+    protected byte[] watermark(WatermarkParam watermarkParam) throws WatermarkException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        watermark(watermarkParam, out);
+        return out.toByteArray();
+    }
 
+    /**
+     * 添加水印并写出
+     *
+     * @param watermarkParam 水印参数
+     * @param out            输出流, 不会被关闭
+     * @throws WatermarkException 水印异常
+     */
+    private void watermark(WatermarkParam watermarkParam, OutputStream out) throws WatermarkException {
+        InputStream in = null;
+        Presentation pres = null;
+        ImageFile imageFile = watermarkParam.getImageFile();
         try {
-            BufferedImage bufferedImage = ImgUtil.toImage(imageFile.getBytes());
-            IPPImage image = pres.getImages().addImage(imageFile.getBytes());
+            SrcFile file = watermarkParam.getFile();
+            if (isFromPath(file)) {
+                pres = new Presentation(file.getFile().getAbsolutePath(), createLoadOptions());
+            } else {
+                in = getSourceStream(file);
+                pres = new Presentation(in);
+            }
+            IMasterSlideCollection presMasters = pres.getMasters();
+
+            BufferedImage bufferedImage = imageFile.getStamp().getImage();
             int imageWidth = bufferedImage.getWidth();
             int imageHeight = bufferedImage.getHeight();
+            Dimension2D dimension2D = pres.getSlideSize().getSize();
+            float srcWidth = Convert.toFloat(dimension2D.getWidth());
+            float srcHeight = Convert.toFloat(dimension2D.getHeight());
+            boolean composite = overlay && watermarkParam.getBespread();
+            IPPImage image = composite
+                    ? pres.getImages().addImage(createOverlay(bufferedImage, srcWidth, srcHeight, watermarkParam))
+                    : pres.getImages().addImage(imageFile.getBytes());
 
             for (IMasterSlide master : presMasters) {
-                Dimension2D dimension2D = pres.getSlideSize().getSize();
-                float srcWidth = Convert.toFloat(dimension2D.getWidth());
-                float srcHeight = Convert.toFloat(dimension2D.getHeight());
-                if (!watermarkParam.getBespread()) {
+                if (composite) {
+                    // 合成图片按 1 像素 1 磅绘制, 与逐个添加时的水印大小一致
+                    IAutoShape watermarkShape = master.getShapes().addAutoShape(ShapeType.Rectangle, 0, 0, srcWidth, srcHeight);
+                    setShape(watermarkShape, image);
+                } else if (!watermarkParam.getBespread()) {
                     IAutoShape watermarkShape = master.getShapes().addAutoShape(ShapeType.Rectangle, srcWidth / 2.0F - watermarkParam.getXMove(),
                             srcHeight / 2.0F - watermarkParam.getYMove(), imageWidth, imageHeight);
                     setShape(watermarkShape, image);
@@ -69,21 +190,68 @@ public class PowerPointWatermarkProcessor extends AbstractWatermarkProcessor {
                     }
                 }
             }
-            out = new ByteArrayOutputStream();
-            pres.save(out, SaveFormat.Pptx);
-            return out.toByteArray();
+            boolean ppt = file.getFileType() == FileType.PPT && !isUpgrade(watermarkParam);
+            pres.save(out, ppt ? SaveFormat.Ppt : SaveFormat.Pptx);
         } catch (Exception e) {
             log.error(String.format("A watermark is incorrectly added to the PPT 【%s】", e.getMessage()), e);
             throw new WatermarkException(e.getMessage());
         } finally {
             IoUtil.close(in);
-            IoUtil.close(out);
             if (ObjectUtil.isNotNull(pres)) {
                 pres.dispose();
             }
         }
     }
 
+    /**
+     * 是否从文件路径加载: 只指定文件路径时不再读入字节数组, 图片、音视频等大对象按需从原文件读取
+     *
+     * @param file 文件
+     * @return boolean
+     */
+    private boolean isFromPath(SrcFile file) {
+        return !file.hasBytes() && FileUtil.isFile(file.getFile());
+    }
+
+    /**
+     * 创建加载选项: 加载期间锁定原文件, 大对象不读入内存; 内存中大对象超过上限时转存临时文件
+     *
+     * @return {@link LoadOptions}
+     */
+    private LoadOptions createLoadOptions() {
+        LoadOptions loadOptions = new LoadOptions();
+        IBlobManagementOptions blobOptions = loadOptions.getBlobManagementOptions();
+        blobOptions.setPresentationLockingBehavior(PresentationLockingBehavior.KeepLocked);
+        blobOptions.setTemporaryFilesAllowed(Boolean.TRUE);
+        blobOptions.setMaxBlobsBytesInMemory(maxBlobsBytesInMemory);
+        if (StrUtil.isNotBlank(tempFilesRootPath)) {
+            blobOptions.setTempFilesRootPath(tempFilesRootPath);
+        }
+        return loadOptions;
+    }
+
+    /**
+     * 按铺满布局将水印合成为一张与幻灯片等大的透明图片
+     *
+     * @param stamp          水印图片
+     * @param width          幻灯片宽度(磅)
+     * @param height         幻灯片高度(磅)
+     * @param watermarkParam 水印参数
+     * @return {@link byte[]} png 图片
+     */
+    private byte[] createOverlay(BufferedImage stamp, float width, float height, WatermarkParam watermarkParam) {
+        BufferedImage target = new BufferedImage(Math.max(1, (int) Math.ceil(width)), Math.max(1, (int) Math.ceil(height)),
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        List<Point> points = new ArrayList<>();
+        for (int y = 0; y < height; y = y + stamp.getHeight() + watermarkParam.getYMove()) {
+            for (int x = 0; x < width; x = x + stamp.getWidth() + watermarkParam.getXMove()) {
+                points.add(new Point(x, y));
+            }
+        }
+        ImageUtils.overlay(target, stamp, points, !Boolean.FALSE.equals(watermarkParam.getParallel()));
+        return ImgUtil.toBytes(target, ImgUtil.IMAGE_TYPE_PNG);
+    }
+
     private void setShape(IAutoShape shape, IPPImage image) {
 
         // 設置填充類型
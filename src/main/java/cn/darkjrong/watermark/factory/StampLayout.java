@@ -0,0 +1,157 @@
+package cn.darkjrong.watermark.factory;
+
+import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.hutool.core.util.ObjectUtil;
+import cn.hutool.core.util.StrUtil;
+import com.aspose.pdf.Rectangle;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PDF 水印布局
+ * <p>
+ * 按页面矩形、裁剪框、旋转角度与水印尺寸、间距计算各水印的变换矩阵, 完全落在裁剪框外的水印直接剔除.
+ * 同一几何的页面(跨文档)复用同一布局, 超出容量时淘汰最久未使用的布局
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+class StampLayout {
+
+    private static final int MAXIMUM_SIZE = 64;
+
+    private static final Map<String, double[]> CACHE = new LinkedHashMap<String, double[]>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > MAXIMUM_SIZE;
+        }
+    };
+
+    private StampLayout() {
+    }
+
+    /**
+     * 获取布局
+     *
+     * @param rect           页面矩形
+     * @param cropBox        裁剪框
+     * @param rotation       页面旋转({@link com.aspose.pdf.Rotation} 常量)
+     * @param width          水印宽度
+     * @param height         水印高度
+     * @param watermarkParam 水印参数
+     * @return {@link double[]} 每 6 个数为一个水印的变换矩阵(a b c d e f), 将单位正方形映射到水印在页面中的位置,
+     * 页面旋转后水印仍然正立, 调用方不可修改
+     */
+    static double[] get(Rectangle rect, Rectangle cropBox, int rotation, double width, double height,
+                        WatermarkParam watermarkParam) {
+        int quarter = quarter(rotation);
+        String key = StrUtil.format("{}:{}:{}:{}:{}:{}:{}:{}:{}:{}:{}:{}:{}:{}", rect.getLLX(), rect.getLLY(),
+                rect.getURX(), rect.getURY(), cropBox.getLLX(), cropBox.getLLY(), cropBox.getURX(), cropBox.getURY(),
+                quarter, width, height, watermarkParam.getXMove(), watermarkParam.getYMove(), watermarkParam.getBespread());
+        double[] layout;
+        synchronized (CACHE) {
+            layout = CACHE.get(key);
+        }
+        if (ObjectUtil.isNull(layout)) {
+            layout = compute(rect, cropBox, quarter, width, height, watermarkParam);
+            synchronized (CACHE) {
+                CACHE.put(key, layout);
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * 页面顺时针旋转的 90 度数
+     *
+     * @param rotation 页面旋转({@link com.aspose.pdf.Rotation} 常量)
+     * @return int 0 - 3
+     */
+    static int quarter(int rotation) {
+        return Math.floorMod(rotation, 4);
+    }
+
+    /**
+     * 计算布局, 间距与偏移按页面显示方向计算
+     *
+     * @param rect           页面矩形
+     * @param cropBox        裁剪框
+     * @param quarter        页面顺时针旋转的 90 度数
+     * @param width          水印宽度
+     * @param height         水印高度
+     * @param watermarkParam 水印参数
+     * @return {@link double[]}
+     */
+    private static double[] compute(Rectangle rect, Rectangle cropBox, int quarter, double width, double height,
+                                    WatermarkParam watermarkParam) {
+        boolean swap = quarter % 2 == 1;
+        double pageWidth = swap ? rect.getHeight() : rect.getWidth();
+        double pageHeight = swap ? rect.getWidth() : rect.getHeight();
+        if (!watermarkParam.getBespread()) {
+            double x = pageWidth / 2 - watermarkParam.getXMove();
+            double y = pageHeight / 2 - watermarkParam.getYMove();
+            double[] matrix = matrix(rect, quarter, x, y, width, height);
+            return visible(cropBox, matrix) ? matrix : new double[0];
+        }
+
+        double stepX = Math.max(1, width + watermarkParam.getXMove());
+        double stepY = Math.max(1, height + watermarkParam.getYMove());
+        double[] layout = new double[24];
+        int size = 0;
+        for (double y = 0; y < pageHeight; y = y + stepY) {
+            for (double x = 0; x < pageWidth; x = x + stepX) {
+                double[] matrix = matrix(rect, quarter, x, y, width, height);
+                if (!visible(cropBox, matrix)) {
+                    continue;
+                }
+                if (size + matrix.length > layout.length) {
+                    layout = Arrays.copyOf(layout, layout.length * 2);
+                }
+                System.arraycopy(matrix, 0, layout, size, matrix.length);
+                size += matrix.length;
+            }
+        }
+        return Arrays.copyOf(layout, size);
+    }
+
+    /**
+     * 计算水印的变换矩阵, 将显示方向上左下角为 (x, y) 的水印映射回未旋转的页面坐标
+     *
+     * @param rect    页面矩形
+     * @param quarter 页面顺时针旋转的 90 度数
+     * @param x       显示方向上相对页面左下角的横坐标
+     * @param y       显示方向上相对页面左下角的纵坐标
+     * @param width   水印宽度
+     * @param height  水印高度
+     * @return {@link double[]}
+     */
+    private static double[] matrix(Rectangle rect, int quarter, double x, double y, double width, double height) {
+        double left = rect.getLLX();
+        double bottom = rect.getLLY();
+        switch (quarter) {
+            case 1:
+                return new double[]{0, width, -height, 0, left + rect.getWidth() - y, bottom + x};
+            case 2:
+                return new double[]{-width, 0, 0, -height, left + rect.getWidth() - x, bottom + rect.getHeight() - y};
+            case 3:
+                return new double[]{0, -width, height, 0, left + y, bottom + rect.getHeight() - x};
+            default:
+                return new double[]{width, 0, 0, height, left + x, bottom + y};
+        }
+    }
+
+    /**
+     * 水印是否与裁剪框相交
+     */
+    private static boolean visible(Rectangle cropBox, double[] matrix) {
+        double minX = matrix[4] + Math.min(0, matrix[0]) + Math.min(0, matrix[2]);
+        double maxX = matrix[4] + Math.max(0, matrix[0]) + Math.max(0, matrix[2]);
+        double minY = matrix[5] + Math.min(0, matrix[1]) + Math.min(0, matrix[3]);
+        double maxY = matrix[5] + Math.max(0, matrix[1]) + Math.max(0, matrix[3]);
+        return minX < cropBox.getURX() && maxX > cropBox.getLLX()
+                && minY < cropBox.getURY() && maxY > cropBox.getLLY();
+    }
+
+}
@@ -1,6 +1,7 @@
 package cn.darkjrong.watermark.factory;
 
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.io.FileUtil;
 
@@ -34,6 +35,34 @@ public interface WatermarkProcessor {
         return Boolean.FALSE;
     }
 
+    /**
+     * 支持类型
+     *
+     * @param fileType 已探测的文件类型
+     * @return {@link Boolean}
+     */
+    default Boolean supportType(FileType fileType) {
+        return Boolean.FALSE;
+    }
+
+    /**
+     * 优先级, 值越小越优先; 同一文件类型有多个处理器时, 取优先级最高者, 优先级相同取先注册者
+     *
+     * @return {@link Integer}
+     */
+    default Integer getOrder() {
+        return 0;
+    }
+
+    /**
+     * 是否直接绘制文本水印; 返回 true 时文本水印不再栅格化为图章, 由处理器按 {@link cn.darkjrong.watermark.domain.ImageFile#getText()} 自行绘制
+     *
+     * @return {@link Boolean}
+     */
+    default Boolean supportText() {
+        return Boolean.FALSE;
+    }
+
     /**
      * 添加水印
      *
@@ -1,19 +1,20 @@
 package cn.darkjrong.watermark.factory;
 
 import cn.darkjrong.watermark.FileTypeUtils;
-import cn.darkjrong.watermark.domain.ImageFile;
 import cn.darkjrong.watermark.domain.WatermarkParam;
+import cn.darkjrong.watermark.domain.WatermarkStamp;
+import cn.darkjrong.watermark.enums.FileType;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.IdUtil;
 import com.aspose.words.*;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * WORD水印处理器
@@ -24,14 +25,24 @@ import java.io.InputStream;
 @Slf4j
 public class WordWatermarkProcessor extends AbstractWatermarkProcessor {
 
+    /**
+     * 水印图形名称前缀
+     */
+    private static final String WATERMARK_NAME = "WaterMark";
+
     @Override
     public Boolean supportType(File file) {
-        return FileTypeUtils.isWord(file);
+        return supportType(FileTypeUtils.detect(file));
     }
 
     @Override
     public Boolean supportType(byte[] file) {
-        return FileTypeUtils.isWord(file);
+        return supportType(FileTypeUtils.detect(file));
+    }
+
+    @Override
+    public Boolean supportType(FileType fileType) {
+        return fileType == FileType.DOCX || fileType == FileType.DOC || fileType == FileType.RTF;
     }
 
     @Override
@@ -39,26 +50,25 @@ public class WordWatermarkProcessor extends AbstractWatermarkProcessor {
         ByteArrayOutputStream out = null;
         InputStream in = null;
         try {
-            in = getInputStream(watermarkParam.getFile().getBytes());
+            // doc/rtf 按原格式直接加载, 不再先转换为 docx
+            in = getSourceStream(watermarkParam.getFile());
             Document doc = new Document(in);
-            Paragraph watermarkPara = new Paragraph(doc);
-            if (!watermarkParam.getBespread()) {
-                Shape shape = buildShape(doc, watermarkParam.getImageFile(),
-                        500 / 2.0 - watermarkParam.getYMove(),
-                        700 / 2.0 - watermarkParam.getXMove());
-                watermarkPara.appendChild(shape);
-                insertWatermark(doc, watermarkPara);
-            } else {
-                for (int j = 0; j < 500; j = j + watermarkParam.getYMove()) {
-                    for (int i = 0; i < 700; i = i + watermarkParam.getXMove()) {
-                        Shape waterShape = buildShape(doc, watermarkParam.getImageFile(), j, i);
-                        watermarkPara.appendChild(waterShape);
-                    }
-                }
-                insertWatermark(doc, watermarkPara);
+            Shape prototype = buildShape(doc, watermarkParam.getImageFile().getStamp());
+
+            // 相同页面尺寸的节共用同一水印段落
+            Map<String, Paragraph> paragraphs = new HashMap<>();
+            // 各类页眉链当前携带的水印布局
+            Map<Integer, String> carried = new HashMap<>();
+            SectionCollection sections = doc.getSections();
+            for (int i = 0; i < sections.getCount(); i++) {
+                PageSetup pageSetup = sections.get(i).getPageSetup();
+                String key = pageSetup.getPageWidth() + ":" + pageSetup.getPageHeight();
+                Paragraph watermarkPara = paragraphs.computeIfAbsent(key,
+                        a -> buildParagraph(doc, prototype, pageSetup.getPageWidth(), pageSetup.getPageHeight(), watermarkParam));
+                insertWatermark(watermarkPara, prototype.getName(), key, sections, i, carried);
             }
             out = new ByteArrayOutputStream();
-            doc.save(out, SaveFormat.DOCX);
+            doc.save(out, getSaveFormat(watermarkParam));
             return out.toByteArray();
         } catch (Exception e) {
             log.error(String.format("word added watermark exception 【%s】", e.getMessage()), e);
@@ -70,75 +80,195 @@ public class WordWatermarkProcessor extends AbstractWatermarkProcessor {
     }
 
     /**
-     * 插入水印
+     * 获取保存格式, doc 默认保持原格式; rtf 与以往一致输出 docx
+     *
+     * @param watermarkParam 水印参数
+     * @return int {@link SaveFormat}
+     */
+    private int getSaveFormat(WatermarkParam watermarkParam) {
+        if (watermarkParam.getFile().getFileType() == FileType.DOC && !isUpgrade(watermarkParam)) {
+            return SaveFormat.DOC;
+        }
+        return SaveFormat.DOCX;
+    }
+
+    /**
+     * 按页面尺寸构建水印段落, 水印相对页面定位, 完全落在页面外的水印直接剔除
+     *
+     * @param doc            文档对象
+     * @param prototype      水印图形原型
+     * @param pageWidth      页面宽度
+     * @param pageHeight     页面高度
+     * @param watermarkParam 水印参数
+     * @return {@link Paragraph} 水印段落
+     */
+    private Paragraph buildParagraph(Document doc, Shape prototype, double pageWidth, double pageHeight,
+                                     WatermarkParam watermarkParam) {
+        Paragraph watermarkPara = new Paragraph(doc);
+        double width = prototype.getWidth();
+        double height = prototype.getHeight();
+        if (!watermarkParam.getBespread()) {
+            double left = pageWidth / 2.0 - watermarkParam.getXMove();
+            double top = pageHeight / 2.0 - watermarkParam.getYMove();
+            if (left < pageWidth && left + width > 0 && top < pageHeight && top + height > 0) {
+                watermarkPara.appendChild(copyShape(prototype, left, top));
+            }
+            return watermarkPara;
+        }
+        // 铺满时只在页面范围内起始, 不会产生页面外的水印
+        int stepX = Math.max(1, watermarkParam.getXMove());
+        int stepY = Math.max(1, watermarkParam.getYMove());
+        for (double top = 0; top < pageHeight; top = top + stepY) {
+            for (double left = 0; left < pageWidth; left = left + stepX) {
+                watermarkPara.appendChild(copyShape(prototype, left, top));
+            }
+        }
+        return watermarkPara;
+    }
+
+    /**
+     * 插入水印, 只在实际显示的页眉中插入
+     * <p>
+     * 首页页眉仅在节设置了首页不同时显示, 偶数页页眉仅在设置了奇偶页不同时显示;
+     * 链接到上一节的页眉已携带相同布局的水印时不再重复插入, 布局不同时断开链接, 复制上一节的页眉后替换水印
      *
      * @param watermarkPara 水印段落
-     * @param doc           对象
+     * @param name          本次添加的水印图形名称
+     * @param key           水印布局
+     * @param sections      全部节
+     * @param index         节序号
+     * @param carried       各类页眉链当前携带的水印布局
      * @throws Exception 异常
      */
-    private void insertWatermark(Document doc, Paragraph watermarkPara) throws Exception {
-        for (Section sect : doc.getSections()) {
-            insertWatermark(watermarkPara, sect, HeaderFooterType.HEADER_PRIMARY);
-            insertWatermark(watermarkPara, sect, HeaderFooterType.HEADER_FIRST);
-            insertWatermark(watermarkPara, sect, HeaderFooterType.HEADER_EVEN);
-        }
+    private void insertWatermark(Paragraph watermarkPara, String name, String key, SectionCollection sections, int index,
+                                 Map<Integer, String> carried) throws Exception {
+        Section sect = sections.get(index);
+        PageSetup pageSetup = sect.getPageSetup();
+        insertWatermark(watermarkPara, name, key, sections, index, HeaderFooterType.HEADER_PRIMARY, Boolean.TRUE, carried);
+        insertWatermark(watermarkPara, name, key, sections, index, HeaderFooterType.HEADER_FIRST,
+                pageSetup.getDifferentFirstPageHeaderFooter(), carried);
+        insertWatermark(watermarkPara, name, key, sections, index, HeaderFooterType.HEADER_EVEN,
+                pageSetup.getOddAndEvenPagesHeaderFooter(), carried);
     }
 
     /**
      * 插入水印
      *
      * @param watermarkPara 水印段落
-     * @param sect          部件
+     * @param name          本次添加的水印图形名称
+     * @param key           水印布局
+     * @param sections      全部节
+     * @param index         节序号
      * @param headerType    {@link HeaderFooterType}   头标类型字段
+     * @param shown         页眉是否显示
+     * @param carried       各类页眉链当前携带的水印布局
      * @throws Exception 异常
      */
-    private void insertWatermark(Paragraph watermarkPara, Section sect, int headerType) throws Exception {
+    private void insertWatermark(Paragraph watermarkPara, String name, String key, SectionCollection sections, int index,
+                                 int headerType, boolean shown, Map<Integer, String> carried) throws Exception {
+        Section sect = sections.get(index);
         HeaderFooter header = sect.getHeadersFooters().getByHeaderFooterType(headerType);
-        if (header == null) {
+        boolean linked = index > 0 && (header == null || header.isLinkedToPrevious());
+        if (!shown) {
+            // 不显示的页眉不加水印, 但其内容会被后续链接的节继承
+            if (!linked) {
+                carried.remove(headerType);
+            }
+            return;
+        }
+        if (linked && key.equals(carried.get(headerType))) {
+            return;
+        }
+        if (linked) {
+            // 断开链接, 沿用上一节页眉的内容并去掉其中本次添加的、布局不同的水印
+            HeaderFooter previous = getLinkedHeader(sections, index, headerType);
+            if (header != null) {
+                header.remove();
+            }
+            header = previous == null ? new HeaderFooter(sect.getDocument(), headerType)
+                    : (HeaderFooter) previous.deepClone(true);
+            removeWatermark(header, name);
+            sect.getHeadersFooters().add(header);
+        } else if (header == null) {
             header = new HeaderFooter(sect.getDocument(), headerType);
             sect.getHeadersFooters().add(header);
         }
         header.appendChild(watermarkPara.deepClone(true));
+        carried.put(headerType, key);
     }
 
     /**
-     * 构建shape类
+     * 获取链接到的上一节页眉
      *
-     * @param doc            文档对象
-     * @param watermarkParam 水印参数
+     * @param sections   全部节
+     * @param index      节序号
+     * @param headerType {@link HeaderFooterType}   头标类型字段
+     * @return {@link HeaderFooter} 页眉, 前面各节都没有时为空
+     */
+    private HeaderFooter getLinkedHeader(SectionCollection sections, int index, int headerType) {
+        for (int i = index - 1; i >= 0; i--) {
+            HeaderFooter header = sections.get(i).getHeadersFooters().getByHeaderFooterType(headerType);
+            if (header != null && !header.isLinkedToPrevious()) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 移除页眉中本次添加的水印, 以前添加的或用户自己的同名图形保留, 与上一节保持一致
+     *
+     * @param header 页眉
+     * @param name   本次添加的水印图形名称
+     */
+    private void removeWatermark(HeaderFooter header, String name) {
+        for (Node node : header.getChildNodes(NodeType.SHAPE, Boolean.TRUE).toArray()) {
+            Shape shape = (Shape) node;
+            if (!name.equals(shape.getName())) {
+                continue;
+            }
+            Paragraph paragraph = shape.getParentParagraph();
+            shape.remove();
+            if (paragraph != null && !paragraph.hasChildNodes()) {
+                paragraph.remove();
+            }
+        }
+    }
+
+    /**
+     * 构建shape类, 水印图片只解码一次, 各处水印均复制此图形
+     *
+     * @param doc   文档对象
+     * @param stamp 水印图章
      * @return {@link Shape} shape类
      * @throws Exception 异常
      */
-    private Shape buildShape(Document doc, WatermarkParam watermarkParam) throws Exception {
-        return buildShape(doc, watermarkParam.getImageFile(), watermarkParam.getYMove(), watermarkParam.getXMove());
+    private Shape buildShape(Document doc, WatermarkStamp stamp) throws Exception {
+        Shape shape = new Shape(doc, ShapeType.IMAGE);
+        shape.setWidth(stamp.getWidth());
+        shape.setHeight(stamp.getHeight());
+        shape.getImageData().setImageBytes(stamp.getBytes());
+        shape.setWrapType(WrapType.NONE);
+        // 每次添加使用不同的名称, 断开页眉链接时只移除本次添加的水印
+        shape.setName(WATERMARK_NAME + "_" + IdUtil.fastSimpleUUID());
+        shape.setRelativeHorizontalPosition(RelativeHorizontalPosition.PAGE);
+        shape.setRelativeVerticalPosition(RelativeVerticalPosition.PAGE);
+        return shape;
     }
 
     /**
-     * 构建shape类
+     * 复制shape类
      *
-     * @param doc     文档对象
-     * @param imgFile 水印图片
-     * @param left    左
-     * @param top     下
+     * @param prototype 原型
+     * @param left      左
+     * @param top       下
      * @return {@link Shape} shape类
-     * @throws Exception 异常
      */
-    private Shape buildShape(Document doc, ImageFile imgFile, double left, double top) throws Exception {
-        ByteArrayInputStream in = null;
-        try {
-            in = new ByteArrayInputStream(imgFile.getBytes());
-            Shape shape = new Shape(doc, ShapeType.IMAGE);
-            BufferedImage sourceImg = ImageIO.read(in);
-            shape.setWidth(sourceImg.getWidth());
-            shape.setHeight(sourceImg.getHeight());
-            shape.getImageData().setImage(sourceImg);
-            shape.setLeft(left);
-            shape.setTop(top);
-            shape.setWrapType(WrapType.NONE);
-            return shape;
-        } finally {
-            IoUtil.close(in);
-        }
+    private Shape copyShape(Shape prototype, double left, double top) {
+        Shape shape = (Shape) prototype.deepClone(true);
+        shape.setLeft(left);
+        shape.setTop(top);
+        return shape;
     }
 
 
@@ -0,0 +1,1292 @@
+package cn.darkjrong.watermark.factory;
+
+import cn.hutool.core.util.ObjectUtil;
+import cn.hutool.core.util.StrUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * xlsx 背景图片流式写出器
+ * <p>
+ * 直接在 zip 层处理工作簿: 未修改的条目按原压缩数据原样复制, 不再解压、压缩;
+ * 各工作表按字节扫描标记、原样复制, 按 CT_Worksheet 的元素顺序插入 {@code <picture r:id>};
+ * 页眉模式下改为合并 {@code <headerFooter>} 并插入 {@code <legacyDrawingHF r:id>}, 每个工作表一个 VML 绘图.
+ * 图片只写入一份, 各工作表(或 VML 绘图)关系指向同一图片. 内存占用与工作表大小无关.
+ * 原有的背景图片、页眉绘图被替换时, 工作表中指向它们的关系一并删除, 不再被引用的页眉 VML 绘图及其关系不再写出;
+ * 原页眉左、右部分的图片随原绘图一起去除, 原图片文件保留(可能被其他部件引用).
+ * 工作表关系与 VML 绘图在所有工作表之后写出, 以便扫描工作表时确定被替换的关系
+ * 不支持 Zip64、加密条目或无法识别的结构, 此时 {@link #open(ByteBuffer, byte[], String, int[])} 返回空, 由调用方回退
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+class XlsxBackgroundWriter {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int FLAG_ENCRYPTED = 0x01;
+    private static final int FLAG_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final String CONTENT_TYPES = "[Content_Types].xml";
+    private static final String CONTENT_TYPES_NS = "http://schemas.openxmlformats.org/package/2006/content-types";
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String WORKSHEET_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml";
+    private static final String STRICT_NS = "http://purl.oclc.org/ooxml/spreadsheetml/main";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String STRICT_REL_NS = "http://purl.oclc.org/ooxml/officeDocument/relationships";
+    private static final String VML_EXTENSION = "vml";
+    private static final String VML_TYPE = "application/vnd.openxmlformats-officedocument.vmlDrawing";
+
+    /**
+     * 元素上带前缀的 id 属性(关系 id)
+     */
+    private static final Pattern REL_ID = Pattern.compile("\\s[A-Za-z_][\\w.-]*:id\\s*=\\s*([\"'])(.*?)\\1");
+
+    /**
+     * CT_Worksheet 中位于 picture 之后的元素
+     */
+    private static final Set<String> AFTER_PICTURE = new HashSet<>(Arrays.asList(
+            "oleObjects", "controls", "webPublishItems", "tableParts", "extLst"));
+
+    /**
+     * CT_Worksheet 中位于 legacyDrawingHF 之后的元素
+     */
+    private static final Set<String> AFTER_LEGACY_DRAWING_HF = new HashSet<>(Arrays.asList(
+            "drawingHF", "picture", "oleObjects", "controls", "webPublishItems", "tableParts", "extLst"));
+
+    /**
+     * CT_Worksheet 中位于 headerFooter 之后的元素
+     */
+    private static final Set<String> AFTER_HEADER_FOOTER = new HashSet<>(Arrays.asList(
+            "rowBreaks", "colBreaks", "customProperties", "cellWatches", "ignoredErrors", "smartTags",
+            "drawing", "legacyDrawing", "legacyDrawingHF", "drawingHF", "picture", "oleObjects", "controls",
+            "webPublishItems", "tableParts", "extLst"));
+
+    private final ByteBuffer zip;
+    private final List<Entry> entries;
+    private final byte[] image;
+    private final String mediaName;
+
+    /**
+     * 页眉图片尺寸(像素), 为空时为背景图片
+     */
+    private final int[] header;
+
+    /**
+     * 修改后的小型条目(内容类型)
+     */
+    private final Map<String, byte[]> replaced = new LinkedHashMap<>();
+
+    /**
+     * 新增的 VML 绘图关系
+     */
+    private final Map<String, byte[]> added = new LinkedHashMap<>();
+
+    /**
+     * 工作表关系, 所有工作表写出后再写出
+     */
+    private final Map<String, Document> relationships = new LinkedHashMap<>();
+
+    /**
+     * 工作表中被替换的背景图片(或页眉绘图)关系 id, 扫描工作表时确定
+     */
+    private final Map<String, String> stale = new HashMap<>();
+
+    /**
+     * 工作表及其背景图片(或页眉 VML 绘图)关系 id
+     */
+    private final Map<String, String> sheets = new HashMap<>();
+
+    /**
+     * 工作表及其页眉 VML 绘图名称
+     */
+    private final Map<String, String> drawings = new LinkedHashMap<>();
+
+    /**
+     * 工作表页眉 VML 绘图中的形状 id, 扫描工作表时确定
+     */
+    private final Map<String, List<String>> shapes = new HashMap<>();
+
+    /**
+     * 工作表根元素
+     */
+    private final Map<String, QName> roots = new HashMap<>();
+
+    private XlsxBackgroundWriter(ByteBuffer zip, List<Entry> entries, byte[] image, String mediaName, int[] header) {
+        this.zip = zip;
+        this.entries = entries;
+        this.image = image;
+        this.mediaName = mediaName;
+        this.header = header;
+    }
+
+    /**
+     * 解析工作簿结构并准备修改内容, 此时尚未写出任何数据
+     *
+     * @param zip       工作簿
+     * @param image     背景图片
+     * @param extension 图片扩展名
+     * @param header    页眉图片宽、高(像素), 为空时添加背景图片
+     * @return {@link XlsxBackgroundWriter} 不支持时为空
+     * @throws Exception 异常
+     */
+    static XlsxBackgroundWriter open(ByteBuffer zip, byte[] image, String extension, int[] header) throws Exception {
+        ByteBuffer buffer = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> entries = readEntries(buffer);
+        if (ObjectUtil.isNull(entries)) {
+            return null;
+        }
+        Map<String, Entry> names = new HashMap<>();
+        for (Entry entry : entries) {
+            names.put(entry.name, entry);
+        }
+        Entry contentTypes = names.get(CONTENT_TYPES);
+        if (ObjectUtil.isNull(contentTypes) || !contentTypes.readable()) {
+            return null;
+        }
+
+        String mediaName = "xl/media/watermark." + extension;
+        for (int i = 1; names.containsKey(mediaName); i++) {
+            mediaName = "xl/media/watermark" + i + "." + extension;
+        }
+        XlsxBackgroundWriter writer = new XlsxBackgroundWriter(buffer, entries, image, mediaName, header);
+        return writer.prepare(names, contentTypes, extension) ? writer : null;
+    }
+
+    /**
+     * 准备内容类型与各工作表关系
+     */
+    private boolean prepare(Map<String, Entry> names, Entry contentTypes, String extension) throws Exception {
+        Document types = parse(contentTypes);
+        List<String> worksheets = new ArrayList<>();
+        NodeList overrides = types.getDocumentElement().getElementsByTagNameNS(CONTENT_TYPES_NS, "Override");
+        for (int i = 0; i < overrides.getLength(); i++) {
+            Element override = (Element) overrides.item(i);
+            if (WORKSHEET_TYPE.equals(override.getAttribute("ContentType"))) {
+                worksheets.add(StrUtil.removePrefix(override.getAttribute("PartName"), "/"));
+            }
+        }
+        if (worksheets.isEmpty() || entries.size() + worksheets.size() * (isHeader() ? 3 : 1) + 1 > MAX_ENTRIES) {
+            return false;
+        }
+        boolean modified = addDefault(types, extension, "image/" + extension);
+        if (isHeader()) {
+            modified |= addDefault(types, VML_EXTENSION, VML_TYPE);
+        }
+        if (modified) {
+            replaced.put(CONTENT_TYPES, serialize(types));
+        }
+
+        for (String worksheet : worksheets) {
+            Entry sheet = names.get(worksheet);
+            if (ObjectUtil.isNull(sheet) || !sheet.readable()) {
+                return false;
+            }
+            QName root = peekRoot(sheet);
+            if (ObjectUtil.isNull(root)) {
+                return false;
+            }
+            String relsName = getRelsName(worksheet);
+            Entry rels = names.get(relsName);
+            if (ObjectUtil.isNotNull(rels) && !rels.readable()) {
+                return false;
+            }
+            String relNamespace = STRICT_NS.equals(root.getNamespaceURI()) ? STRICT_REL_NS : REL_NS;
+            Document sheetRelationships = ObjectUtil.isNull(rels) ? createRelationships() : parse(rels);
+            String id;
+            if (isHeader()) {
+                String drawing = "xl/drawings/vmlDrawingHF" + (drawings.size() + 1) + "." + VML_EXTENSION;
+                for (int i = drawings.size() + 2; names.containsKey(drawing); i++) {
+                    drawing = "xl/drawings/vmlDrawingHF" + i + "." + VML_EXTENSION;
+                }
+                id = addRelationship(sheetRelationships, relNamespace + "/vmlDrawing", relativize(worksheet, drawing));
+                Document drawingRelationships = createRelationships();
+                addRelationship(drawingRelationships, relNamespace + "/image", relativize(drawing, mediaName));
+                added.put(getRelsName(drawing), serialize(drawingRelationships));
+                drawings.put(worksheet, drawing);
+            } else {
+                id = addRelationship(sheetRelationships, relNamespace + "/image", relativize(worksheet, mediaName));
+            }
+            relationships.put(relsName, sheetRelationships);
+            sheets.put(worksheet, id);
+            roots.put(worksheet, root);
+        }
+        return true;
+    }
+
+    /**
+     * 写出工作簿
+     *
+     * @param out 输出流, 不会被关闭
+     * @throws Exception 异常
+     */
+    void write(OutputStream out) throws Exception {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        List<Written> written = new ArrayList<>(entries.size() + added.size() + drawings.size() + 1);
+        List<Entry> deferred = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (relationships.containsKey(entry.name) || (isHeader() && isDrawing(entry.name))) {
+                deferred.add(entry);
+            } else if (sheets.containsKey(entry.name)) {
+                written.add(writeDeflated(counter, entry.nameBytes, target -> injectPicture(entry, target)));
+            } else if (replaced.containsKey(entry.name)) {
+                byte[] bytes = replaced.get(entry.name);
+                written.add(writeDeflated(counter, entry.nameBytes, target -> target.write(bytes)));
+            } else {
+                written.add(copy(counter, entry));
+            }
+        }
+
+        // 工作表已全部扫描, 删除被替换的关系后写出工作表关系, 不再被引用的页眉绘图不再写出
+        Set<String> orphans = removeStale();
+        for (Map.Entry<String, Document> entry : relationships.entrySet()) {
+            byte[] bytes = serialize(entry.getValue());
+            written.add(writeDeflated(counter, entry.getKey().getBytes(StandardCharsets.UTF_8), target -> target.write(bytes)));
+        }
+        for (Entry entry : deferred) {
+            if (!relationships.containsKey(entry.name) && !orphans.contains(entry.name)) {
+                written.add(copy(counter, entry));
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : added.entrySet()) {
+            byte[] bytes = entry.getValue();
+            written.add(writeDeflated(counter, entry.getKey().getBytes(StandardCharsets.UTF_8), target -> target.write(bytes)));
+        }
+        for (Map.Entry<String, String> entry : drawings.entrySet()) {
+            // VML 绘图关系中图片为第一个关系
+            byte[] bytes = HeaderPicture.vml(shapes.get(entry.getKey()), "rId1", header[0], header[1]);
+            written.add(writeDeflated(counter, entry.getValue().getBytes(StandardCharsets.UTF_8), target -> target.write(bytes)));
+        }
+        written.add(writeStored(counter, mediaName.getBytes(StandardCharsets.UTF_8), image));
+
+        long start = counter.count;
+        for (Written entry : written) {
+            entry.writeCentral(counter);
+        }
+        long size = counter.count - start;
+        checkOffset(counter.count);
+        DataOutput output = new DataOutput(counter);
+        output.int32(END_HEADER);
+        output.int16(0);
+        output.int16(0);
+        output.int16(written.size());
+        output.int16(written.size());
+        output.int32(size);
+        output.int32(start);
+        output.int16(0);
+        counter.flush();
+    }
+
+    private boolean isHeader() {
+        return ObjectUtil.isNotNull(header);
+    }
+
+    /**
+     * 是否为 VML 绘图或其关系
+     */
+    private static boolean isDrawing(String name) {
+        return name.startsWith("xl/drawings/") && (name.endsWith("." + VML_EXTENSION) || name.endsWith("." + VML_EXTENSION + ".rels"));
+    }
+
+    /**
+     * 从工作表关系中删除被替换的背景图片(或页眉绘图)关系
+     *
+     * @return {@link Set} 不再被任何工作表引用的页眉 VML 绘图及其关系
+     */
+    private Set<String> removeStale() {
+        Set<String> orphans = new HashSet<>();
+        for (Map.Entry<String, String> entry : stale.entrySet()) {
+            Document document = relationships.get(getRelsName(entry.getKey()));
+            NodeList nodes = document.getDocumentElement().getElementsByTagNameNS(RELATIONSHIPS_NS, "Relationship");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element relationship = (Element) nodes.item(i);
+                if (entry.getValue().equals(relationship.getAttribute("Id"))
+                        && !"External".equals(relationship.getAttribute("TargetMode"))) {
+                    orphans.add(resolve(entry.getKey(), relationship.getAttribute("Target")));
+                    relationship.getParentNode().removeChild(relationship);
+                    break;
+                }
+            }
+        }
+        // 其他工作表仍引用的部件保留
+        for (Map.Entry<String, Document> entry : relationships.entrySet()) {
+            String sheet = entry.getKey().replace("_rels/", "");
+            sheet = sheet.substring(0, sheet.length() - ".rels".length());
+            NodeList nodes = entry.getValue().getDocumentElement().getElementsByTagNameNS(RELATIONSHIPS_NS, "Relationship");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                orphans.remove(resolve(sheet, ((Element) nodes.item(i)).getAttribute("Target")));
+            }
+        }
+        Set<String> drawingParts = new HashSet<>();
+        for (String orphan : orphans) {
+            if (isDrawing(orphan)) {
+                drawingParts.add(orphan);
+                drawingParts.add(getRelsName(orphan));
+            }
+        }
+        return drawingParts;
+    }
+
+    /**
+     * 复制工作表并插入背景图片(或页眉图片), 已有的背景图片、页眉绘图被替换
+     */
+    private void injectPicture(Entry sheet, OutputStream out) throws IOException {
+        QName root = roots.get(sheet.name);
+        String relNamespace = STRICT_NS.equals(root.getNamespaceURI()) ? STRICT_REL_NS : REL_NS;
+        String prefix = StrUtil.isEmpty(root.getPrefix()) ? StrUtil.EMPTY : root.getPrefix() + ":";
+        String id = sheets.get(sheet.name);
+        List<Insertion> insertions = new ArrayList<>(2);
+        if (isHeader()) {
+            List<String> shapeIds = new ArrayList<>(3);
+            shapeIds.add(HeaderPicture.ODD);
+            shapes.put(sheet.name, shapeIds);
+            String headerFooter = StrUtil.format("<{}headerFooter><{}oddHeader>{}</{}oddHeader></{}headerFooter>",
+                    prefix, prefix, escape(HeaderPicture.merge(null)), prefix, prefix);
+            insertions.add(new Insertion("headerFooter", AFTER_HEADER_FOOTER, headerFooter.getBytes(StandardCharsets.UTF_8),
+                    element -> mergeHeaderFooter(element, shapeIds)));
+            byte[] legacyDrawingHF = element(prefix + "legacyDrawingHF", relNamespace, id);
+            insertions.add(new Insertion("legacyDrawingHF", AFTER_LEGACY_DRAWING_HF, legacyDrawingHF,
+                    element -> replace(sheet.name, element, legacyDrawingHF)));
+        } else {
+            byte[] picture = element(prefix + "picture", relNamespace, id);
+            insertions.add(new Insertion("picture", AFTER_PICTURE, picture, element -> replace(sheet.name, element, picture)));
+        }
+        try (InputStream in = sheet.open(zip)) {
+            new SheetScanner(in, out).inject(insertions);
+        }
+    }
+
+    /**
+     * 记录被替换元素的关系 id, 返回新元素
+     *
+     * @param sheet    工作表
+     * @param element  原元素
+     * @param fragment 新元素
+     * @return {@link byte[]} 新元素
+     */
+    private byte[] replace(String sheet, byte[] element, byte[] fragment) {
+        Matcher matcher = REL_ID.matcher(new String(element, StandardCharsets.UTF_8));
+        if (matcher.find()) {
+            stale.put(sheet, matcher.group(2));
+        }
+        return fragment;
+    }
+
+    private static byte[] element(String name, String relNamespace, String id) {
+        return StrUtil.format("<{} xmlns:r=\"{}\" r:id=\"{}\"/>", name, relNamespace, id).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在原有页眉页脚的各页眉中间部分加入图片; 设置了首页不同、奇偶页不同时, 首页、偶数页页眉同样加入
+     *
+     * @param element  原 headerFooter 元素
+     * @param shapeIds 需要的 VML 形状 id
+     * @return {@link byte[]} 新的 headerFooter 元素
+     */
+    private static byte[] mergeHeaderFooter(byte[] element, List<String> shapeIds) {
+        try {
+            // 元素前缀在根元素上声明, 这里不处理命名空间
+            DocumentBuilderFactory factory = createDocumentFactory();
+            factory.setNamespaceAware(Boolean.FALSE);
+            Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(element));
+            Element headerFooter = document.getDocumentElement();
+            String name = headerFooter.getTagName();
+            String prefix = name.substring(0, name.indexOf(':') + 1);
+            setHeader(headerFooter, prefix, "oddHeader");
+            if (isTrue(headerFooter.getAttribute("differentOddEven"))) {
+                setHeader(headerFooter, prefix, "evenHeader");
+                shapeIds.add(HeaderPicture.EVEN);
+            }
+            if (isTrue(headerFooter.getAttribute("differentFirst"))) {
+                setHeader(headerFooter, prefix, "firstHeader");
+                shapeIds.add(HeaderPicture.FIRST);
+            }
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            transformer.transform(new DOMSource(document), new StreamResult(out));
+            return out.toByteArray();
+        } catch (Exception e) {
+            throw new IllegalStateException("页眉页脚解析失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 按 CT_HeaderFooter 的元素顺序设置页眉
+     */
+    private static void setHeader(Element headerFooter, String prefix, String name) {
+        List<String> order = Arrays.asList("oddHeader", "oddFooter", "evenHeader", "evenFooter", "firstHeader", "firstFooter");
+        Element target = null;
+        Element before = null;
+        NodeList children = headerFooter.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (!(children.item(i) instanceof Element)) {
+                continue;
+            }
+            Element child = (Element) children.item(i);
+            String localName = child.getTagName().substring(child.getTagName().indexOf(':') + 1);
+            if (name.equals(localName)) {
+                target = child;
+            } else if (ObjectUtil.isNull(before) && order.indexOf(localName) > order.indexOf(name)) {
+                before = child;
+            }
+        }
+        if (ObjectUtil.isNull(target)) {
+            target = headerFooter.getOwnerDocument().createElement(prefix + name);
+            headerFooter.insertBefore(target, before);
+        }
+        target.setTextContent(HeaderPicture.merge(target.getTextContent()));
+    }
+
+    private static boolean isTrue(String value) {
+        return "1".equals(value) || "true".equals(value);
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * 添加扩展名默认内容类型
+     *
+     * @return boolean 是否新增
+     */
+    private static boolean addDefault(Document types, String extension, String contentType) {
+        NodeList defaults = types.getDocumentElement().getElementsByTagNameNS(CONTENT_TYPES_NS, "Default");
+        for (int i = 0; i < defaults.getLength(); i++) {
+            if (extension.equalsIgnoreCase(((Element) defaults.item(i)).getAttribute("Extension"))) {
+                return false;
+            }
+        }
+        Element element = types.createElementNS(CONTENT_TYPES_NS, "Default");
+        element.setAttribute("Extension", extension);
+        element.setAttribute("ContentType", contentType);
+        types.getDocumentElement().insertBefore(element, types.getDocumentElement().getFirstChild());
+        return true;
+    }
+
+    /**
+     * 读取工作表根元素, 非 UTF-8 编码时为空
+     */
+    private QName peekRoot(Entry sheet) throws Exception {
+        InputStream in = sheet.open(zip);
+        XMLStreamReader reader = createInputFactory().createXMLStreamReader(in);
+        try {
+            String encoding = reader.getEncoding();
+            if (StrUtil.isNotEmpty(encoding) && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+                return null;
+            }
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return reader.getName();
+                }
+            }
+            throw new IOException("工作表内容为空: " + sheet.name);
+        } finally {
+            reader.close();
+            in.close();
+        }
+    }
+
+    /**
+     * 原样复制条目的压缩数据, 本地文件头按中央目录重新生成
+     */
+    private Written copy(CountingOutputStream out, Entry entry) throws IOException {
+        Written written = new Written(entry.nameBytes, entry.flags & ~FLAG_DESCRIPTOR, entry.method,
+                entry.time, entry.date, out.count);
+        written.versionMadeBy = entry.versionMadeBy;
+        written.versionNeeded = entry.versionNeeded;
+        written.internal = entry.internal;
+        written.external = entry.external;
+        written.crc = entry.crc;
+        written.compressedSize = entry.compressedSize;
+        written.size = entry.size;
+        checkOffset(out.count);
+        written.writeLocal(out);
+
+        ByteBuffer data = entry.data(zip);
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] buffer = new byte[64 * 1024];
+            while (data.hasRemaining()) {
+                int length = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 压缩写出条目, 大小与校验和写在数据描述符中, 无需预先缓存内容
+     */
+    private Written writeDeflated(CountingOutputStream out, byte[] name, EntryWriter content) throws Exception {
+        int[] time = dosTime();
+        Written written = new Written(name, FLAG_DESCRIPTOR | FLAG_UTF8, DEFLATED, time[0], time[1], out.count);
+        checkOffset(out.count);
+        written.writeLocal(out);
+
+        long start = out.count;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        CountingOutputStream size;
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(new NonClosingOutputStream(out), deflater, 64 * 1024);
+            // 内容按小块写出, 先缓冲再压缩, 避免逐块调用 Deflater
+            size = new CountingOutputStream(new BufferedOutputStream(new CheckedOutputStream(deflated, crc), 64 * 1024));
+            content.write(size);
+            size.flush();
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        written.crc = crc.getValue();
+        written.compressedSize = out.count - start;
+        written.size = size.count;
+        if (written.compressedSize > MAX_32 || written.size > MAX_32) {
+            throw new IOException("条目超过 4GB, 需要 Zip64: " + new String(name, StandardCharsets.UTF_8));
+        }
+        DataOutput output = new DataOutput(out);
+        output.int32(DATA_DESCRIPTOR);
+        output.int32(written.crc);
+        output.int32(written.compressedSize);
+        output.int32(written.size);
+        return written;
+    }
+
+    /**
+     * 不压缩写出条目
+     */
+    private Written writeStored(CountingOutputStream out, byte[] name, byte[] content) throws IOException {
+        int[] time = dosTime();
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        Written written = new Written(name, FLAG_UTF8, STORED, time[0], time[1], out.count);
+        written.crc = crc.getValue();
+        written.compressedSize = content.length;
+        written.size = content.length;
+        checkOffset(out.count);
+        written.writeLocal(out);
+        out.write(content);
+        return written;
+    }
+
+    private static void checkOffset(long offset) throws IOException {
+        if (offset > MAX_32) {
+            throw new IOException("输出超过 4GB, 需要 Zip64");
+        }
+    }
+
+    /**
+     * 读取中央目录
+     *
+     * @param zip 工作簿
+     * @return {@link List} 条目, 不支持时为空
+     */
+    private static List<Entry> readEntries(ByteBuffer zip) {
+        int end = -1;
+        for (int i = zip.limit() - 22; i >= Math.max(0, zip.limit() - 22 - 0xFFFF); i--) {
+            if (zip.getInt(i) == END_HEADER) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0 || (end >= 20 && zip.getInt(end - 20) == ZIP64_LOCATOR)) {
+            return null;
+        }
+        int count = u16(zip, end + 10);
+        long offset = u32(zip, end + 16);
+        if (count == MAX_ENTRIES || offset >= MAX_32) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        int position = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (position + 46 > zip.limit() || zip.getInt(position) != CENTRAL_HEADER) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.versionMadeBy = u16(zip, position + 4);
+            entry.versionNeeded = u16(zip, position + 6);
+            entry.flags = u16(zip, position + 8);
+            entry.method = u16(zip, position + 10);
+            entry.time = u16(zip, position + 12);
+            entry.date = u16(zip, position + 14);
+            entry.crc = u32(zip, position + 16);
+            entry.compressedSize = u32(zip, position + 20);
+            entry.size = u32(zip, position + 24);
+            int nameLength = u16(zip, position + 28);
+            int extraLength = u16(zip, position + 30);
+            int commentLength = u16(zip, position + 32);
+            entry.internal = u16(zip, position + 36);
+            entry.external = u32(zip, position + 38);
+            entry.localOffset = u32(zip, position + 42);
+            if ((entry.flags & FLAG_ENCRYPTED) != 0 || entry.compressedSize >= MAX_32
+                    || entry.size >= MAX_32 || entry.localOffset >= MAX_32) {
+                return null;
+            }
+            entry.nameBytes = new byte[nameLength];
+            ByteBuffer name = zip.duplicate();
+            name.position(position + 46);
+            name.get(entry.nameBytes);
+            entry.name = new String(entry.nameBytes, StandardCharsets.UTF_8);
+            entries.add(entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & MAX_32;
+    }
+
+    /**
+     * 当前时间的 dos 时间与日期
+     */
+    private static int[] dosTime() {
+        LocalDateTime now = LocalDateTime.now();
+        int time = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        int date = ((Math.max(1980, now.getYear()) - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+        return new int[]{time, date};
+    }
+
+    private static String getRelsName(String part) {
+        int index = part.lastIndexOf('/');
+        return part.substring(0, index + 1) + "_rels/" + part.substring(index + 1) + ".rels";
+    }
+
+    /**
+     * 计算部件间的相对路径
+     */
+    private static String relativize(String source, String target) {
+        String[] from = source.split("/");
+        String[] to = target.split("/");
+        int common = 0;
+        while (common < from.length - 1 && common < to.length - 1 && from[common].equals(to[common])) {
+            common++;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = common; i < from.length - 1; i++) {
+            builder.append("../");
+        }
+        for (int i = common; i < to.length; i++) {
+            builder.append(to[i]);
+            if (i < to.length - 1) {
+                builder.append('/');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 按部件计算关系目标的部件名
+     */
+    private static String resolve(String source, String target) {
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+        Deque<String> path = new ArrayDeque<>(Arrays.asList(source.split("/")));
+        path.removeLast();
+        for (String segment : target.split("/")) {
+            if ("..".equals(segment)) {
+                path.pollLast();
+            } else if (!".".equals(segment) && !segment.isEmpty()) {
+                path.addLast(segment);
+            }
+        }
+        return String.join("/", path);
+    }
+
+    private static String addRelationship(Document relationships, String type, String target) {
+        Set<String> ids = new HashSet<>();
+        NodeList nodes = relationships.getDocumentElement().getElementsByTagNameNS(RELATIONSHIPS_NS, "Relationship");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            ids.add(((Element) nodes.item(i)).getAttribute("Id"));
+        }
+        String id = "rId" + (nodes.getLength() + 1);
+        for (int i = nodes.getLength() + 2; ids.contains(id); i++) {
+            id = "rId" + i;
+        }
+        Element element = relationships.createElementNS(RELATIONSHIPS_NS, "Relationship");
+        element.setAttribute("Id", id);
+        element.setAttribute("Type", type);
+        element.setAttribute("Target", target);
+        relationships.getDocumentElement().appendChild(element);
+        return id;
+    }
+
+    private static Document createRelationships() throws Exception {
+        Document document = createDocumentFactory().newDocumentBuilder().newDocument();
+        document.appendChild(document.createElementNS(RELATIONSHIPS_NS, "Relationships"));
+        return document;
+    }
+
+    private Document parse(Entry entry) throws Exception {
+        try (InputStream in = entry.open(zip)) {
+            return createDocumentFactory().newDocumentBuilder().parse(in);
+        }
+    }
+
+    private static byte[] serialize(Document document) throws Exception {
+        document.setXmlStandalone(Boolean.TRUE);
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+        transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformer.transform(new DOMSource(document), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private static DocumentBuilderFactory createDocumentFactory() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(Boolean.TRUE);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", Boolean.TRUE);
+        factory.setExpandEntityReferences(Boolean.FALSE);
+        return factory;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * 条目内容写出器
+     */
+    @FunctionalInterface
+    private interface EntryWriter {
+
+        void write(OutputStream out) throws Exception;
+    }
+
+    /**
+     * 原工作簿中的条目
+     */
+    private static class Entry {
+
+        private String name;
+        private byte[] nameBytes;
+        private int versionMadeBy;
+        private int versionNeeded;
+        private int flags;
+        private int method;
+        private int time;
+        private int date;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private int internal;
+        private long external;
+        private long localOffset;
+
+        /**
+         * 是否可解压读取
+         */
+        private boolean readable() {
+            return method == STORED || method == DEFLATED;
+        }
+
+        /**
+         * 压缩数据
+         */
+        private ByteBuffer data(ByteBuffer zip) throws IOException {
+            int offset = (int) localOffset;
+            if (zip.getInt(offset) != LOCAL_HEADER) {
+                throw new IOException("本地文件头损坏: " + name);
+            }
+            int start = offset + 30 + u16(zip, offset + 26) + u16(zip, offset + 28);
+            ByteBuffer data = zip.duplicate();
+            data.limit(start + (int) compressedSize);
+            data.position(start);
+            return data.slice();
+        }
+
+        /**
+         * 解压读取
+         */
+        private InputStream open(ByteBuffer zip) throws IOException {
+            InputStream in = new ByteBufferInputStream(data(zip), method == DEFLATED);
+            return method == DEFLATED ? new InflaterInputStream(in, new Inflater(true), 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            } : in;
+        }
+    }
+
+    /**
+     * 已写出的条目
+     */
+    private static class Written {
+
+        private final byte[] name;
+        private final int flags;
+        private final int method;
+        private final int time;
+        private final int date;
+        private final long offset;
+        private int versionMadeBy = 20;
+        private int versionNeeded = 20;
+        private int internal;
+        private long external;
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        private Written(byte[] name, int flags, int method, int time, int date, long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.time = time;
+            this.date = date;
+            this.offset = offset;
+        }
+
+        private void writeLocal(OutputStream out) throws IOException {
+            boolean descriptor = (flags & FLAG_DESCRIPTOR) != 0;
+            DataOutput output = new DataOutput(out);
+            output.int32(LOCAL_HEADER);
+            output.int16(versionNeeded);
+            output.int16(flags);
+            output.int16(method);
+            output.int16(time);
+            output.int16(date);
+            output.int32(descriptor ? 0 : crc);
+            output.int32(descriptor ? 0 : compressedSize);
+            output.int32(descriptor ? 0 : size);
+            output.int16(name.length);
+            output.int16(0);
+            out.write(name);
+        }
+
+        private void writeCentral(OutputStream out) throws IOException {
+            DataOutput output = new DataOutput(out);
+            output.int32(CENTRAL_HEADER);
+            output.int16(versionMadeBy);
+            output.int16(versionNeeded);
+            output.int16(flags);
+            output.int16(method);
+            output.int16(time);
+            output.int16(date);
+            output.int32(crc);
+            output.int32(compressedSize);
+            output.int32(size);
+            output.int16(name.length);
+            output.int16(0);
+            output.int16(0);
+            output.int16(0);
+            output.int16(internal);
+            output.int32(external);
+            output.int32(offset);
+            out.write(name);
+        }
+    }
+
+    /**
+     * 小端写出
+     */
+    private static class DataOutput {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[4];
+
+        private DataOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        private void int16(int value) throws IOException {
+            buffer[0] = (byte) value;
+            buffer[1] = (byte) (value >>> 8);
+            out.write(buffer, 0, 2);
+        }
+
+        private void int32(long value) throws IOException {
+            buffer[0] = (byte) value;
+            buffer[1] = (byte) (value >>> 8);
+            buffer[2] = (byte) (value >>> 16);
+            buffer[3] = (byte) (value >>> 24);
+            out.write(buffer, 0, 4);
+        }
+    }
+
+    /**
+     * 计数输出流
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * 关闭时不关闭底层流
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * 插入工作表的元素
+     */
+    private static class Insertion {
+
+        /**
+         * 元素名(不含前缀)
+         */
+        private final String name;
+
+        /**
+         * CT_Worksheet 中位于该元素之后的元素
+         */
+        private final Set<String> followers;
+
+        /**
+         * 原文件没有该元素时插入的内容
+         */
+        private final byte[] fragment;
+
+        /**
+         * 原文件已有该元素时, 由原元素生成替换内容; 为空时以 {@link #fragment} 替换
+         */
+        private final UnaryOperator<byte[]> merger;
+
+        private Insertion(String name, Set<String> followers, byte[] fragment, UnaryOperator<byte[]> merger) {
+            this.name = name;
+            this.followers = followers;
+            this.fragment = fragment;
+            this.merger = merger;
+        }
+    }
+
+    /**
+     * 工作表字节扫描器
+     * <p>
+     * 只识别标记边界与层级, 不解析属性和文本, 内容按原字节写出; 当前标记读完之前保留在缓冲区, 以便在其前插入、整体丢弃或截取
+     */
+    private static class SheetScanner {
+
+        private final InputStream in;
+        private final OutputStream out;
+        private byte[] buffer = new byte[64 * 1024];
+        private int start;
+        private int position;
+        private int limit;
+        private boolean holding;
+
+        /**
+         * 当前写出目标, 为空时丢弃
+         */
+        private OutputStream sink;
+
+        private SheetScanner(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+            this.sink = out;
+        }
+
+        /**
+         * 按 CT_Worksheet 的元素顺序依次插入元素, 原有的同名元素被替换或合并
+         *
+         * @param insertions 待插入元素, 按 CT_Worksheet 中的顺序排列
+         */
+        private void inject(List<Insertion> insertions) throws IOException {
+            int depth = 0;
+            int next = 0;
+            Insertion replacing = null;
+            ByteArrayOutputStream captured = null;
+            int c;
+            while ((c = read()) >= 0) {
+                if (c != '<') {
+                    continue;
+                }
+                position--;
+                flush();
+                position++;
+                holding = true;
+                c = read();
+                if (c == '?') {
+                    skipUntil("?>");
+                } else if (c == '!') {
+                    c = read();
+                    if (c == '-') {
+                        skipUntil("-->");
+                    } else if (c == '[') {
+                        skipUntil("]]>");
+                    } else {
+                        throw new IOException("工作表不允许 DTD");
+                    }
+                } else if (c == '/') {
+                    skipTag();
+                    depth--;
+                    if (depth == 0) {
+                        for (; next < insertions.size(); next++) {
+                            out.write(insertions.get(next).fragment);
+                        }
+                    }
+                    if (depth == 1 && ObjectUtil.isNotNull(replacing)) {
+                        finish(replacing, captured);
+                        replacing = null;
+                    }
+                } else if (c >= 0) {
+                    String name = readName(c);
+                    boolean empty = skipTag();
+                    depth++;
+                    if (depth == 2 && ObjectUtil.isNull(replacing)) {
+                        String localName = name.substring(name.indexOf(':') + 1);
+                        while (next < insertions.size() && insertions.get(next).followers.contains(localName)) {
+                            out.write(insertions.get(next++).fragment);
+                        }
+                        if (next < insertions.size() && insertions.get(next).name.equals(localName)) {
+                            replacing = insertions.get(next++);
+                            captured = ObjectUtil.isNull(replacing.merger) ? null : new ByteArrayOutputStream();
+                            sink = captured;
+                            if (empty) {
+                                finish(replacing, captured);
+                                replacing = null;
+                            }
+                        }
+                    }
+                    if (empty) {
+                        depth--;
+                    }
+                }
+                holding = false;
+                flush();
+            }
+            flush();
+            if (next < insertions.size()) {
+                throw new IOException("工作表结构不完整");
+            }
+        }
+
+        /**
+         * 原元素读完, 写出替换内容
+         */
+        private void finish(Insertion insertion, ByteArrayOutputStream captured) throws IOException {
+            flush();
+            sink = out;
+            out.write(ObjectUtil.isNull(captured) ? insertion.fragment : insertion.merger.apply(captured.toByteArray()));
+        }
+
+        private int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            if (!holding) {
+                flush();
+            }
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                position -= start;
+                limit -= start;
+                start = 0;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int length = in.read(buffer, limit, buffer.length - limit);
+            if (length <= 0) {
+                return false;
+            }
+            limit += length;
+            return true;
+        }
+
+        private void flush() throws IOException {
+            if (ObjectUtil.isNotNull(sink) && position > start) {
+                sink.write(buffer, start, position - start);
+            }
+            start = position;
+        }
+
+        private String readName(int first) throws IOException {
+            StringBuilder name = new StringBuilder();
+            int c = first;
+            while (c >= 0 && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+                name.append((char) c);
+                c = read();
+            }
+            if (c >= 0) {
+                position--;
+            }
+            return name.toString();
+        }
+
+        /**
+         * 跳过标记剩余部分, 属性值中可含 {@code >}
+         *
+         * @return boolean 是否为空元素
+         */
+        private boolean skipTag() throws IOException {
+            int quote = 0;
+            int last = 0;
+            int c;
+            while ((c = read()) >= 0) {
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    return last == '/';
+                }
+                last = c;
+            }
+            throw new IOException("工作表标记不完整");
+        }
+
+        private void skipUntil(String end) throws IOException {
+            int length = end.length();
+            int[] window = new int[length];
+            int count = 0;
+            int c;
+            while ((c = read()) >= 0) {
+                window[count++ % length] = c;
+                if (count >= length && matches(window, count, end)) {
+                    return;
+                }
+            }
+            throw new IOException("工作表标记不完整");
+        }
+
+        private static boolean matches(int[] window, int count, String end) {
+            int length = end.length();
+            for (int i = 0; i < length; i++) {
+                if (window[(count + i) % length] != end.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * {@link ByteBuffer} 输入流; 供 nowrap 模式的 {@link Inflater} 使用时在末尾补一个空字节
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+        private boolean padding;
+
+        private ByteBufferInputStream(ByteBuffer buffer, boolean padding) {
+            this.buffer = buffer;
+            this.padding = padding;
+        }
+
+        @Override
+        public int read() {
+            if (buffer.hasRemaining()) {
+                return buffer.get() & 0xFF;
+            }
+            if (padding) {
+                padding = false;
+                return 0;
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                int value = read();
+                if (value < 0) {
+                    return -1;
+                }
+                b[off] = (byte) value;
+                return 1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+
+}
@@ -0,0 +1,193 @@
+package cn.darkjrong.watermark;
+
+import cn.darkjrong.watermark.enums.FileType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 文件类型探测器测试, 以内存中构造的文件头校验判定结果
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class FileTypeDetectorTest {
+
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    @Test
+    public void ole2() {
+        assertEquals(FileType.DOC, FileTypeDetector.detect(ole2("WordDocument")));
+        assertEquals(FileType.XLS, FileTypeDetector.detect(ole2("Workbook")));
+        assertEquals(FileType.XLS, FileTypeDetector.detect(ole2("Book")));
+        assertEquals(FileType.PPT, FileTypeDetector.detect(ole2("PowerPoint Document")));
+        assertNull(FileTypeDetector.detect(ole2("Contents")));
+    }
+
+    @Test
+    public void zip() throws IOException {
+        assertEquals(FileType.DOCX, FileTypeDetector.detect(archive("[Content_Types].xml", "word/document.xml")));
+        assertEquals(FileType.XLSX, FileTypeDetector.detect(archive("[Content_Types].xml", "xl/workbook.xml")));
+        assertEquals(FileType.PPTX, FileTypeDetector.detect(archive("[Content_Types].xml", "ppt/presentation.xml")));
+        assertEquals(FileType.ZIP, FileTypeDetector.detect(archive("a.txt")));
+        assertEquals(FileType.ZIP, FileTypeDetector.detect(archive()));
+        assertNull(FileTypeDetector.detect(archive("META-INF/MANIFEST.MF", "a.class")));
+    }
+
+    @Test
+    public void pdf() {
+        assertEquals(FileType.PDF, FileTypeDetector.detect(ascii("%PDF-1.7\n%âã\n")));
+        assertEquals(FileType.PDF, FileTypeDetector.detect(concat(BOM, ascii("%PDF-1.4\n"))));
+        assertEquals(FileType.PDF, FileTypeDetector.detect(ascii("HTTP junk\r\n\r\n%PDF-1.4\n")));
+
+        // PDF 头超出允许的偏移范围
+        byte[] late = new byte[1100];
+        Arrays.fill(late, (byte) ' ');
+        System.arraycopy(ascii("%PDF-1.4"), 0, late, 1090, 8);
+        assertNull(FileTypeDetector.detect(late));
+    }
+
+    @Test
+    public void rtf() {
+        assertEquals(FileType.RTF, FileTypeDetector.detect(ascii("{\\rtf1\\ansi %PDF-1.4 }")));
+    }
+
+    @Test
+    public void rar() {
+        assertEquals(FileType.RAR, FileTypeDetector.detect(new byte[]{0x52, 0x61, 0x72, 0x21, 0x1A, 0x07, 0x00}));
+    }
+
+    @Test
+    public void image() {
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0}));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0}));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(ascii("GIF87a\u0001\u0000")));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(ascii("GIF89a\u0001\u0000")));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(new byte[]{'I', 'I', 0x2A, 0, 8, 0, 0, 0}));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(new byte[]{'M', 'M', 0, 0x2A, 0, 0, 0, 8}));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(new byte[]{'B', 'M', 0x46, 0, 0, 0, 0, 0, 0, 0, 0x36, 0, 0, 0}));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(ascii("RIFF$\u0000\u0000\u0000WEBPVP8 ")));
+
+        // 保留字段非零的 BM 开头不是 BMP
+        assertNull(FileTypeDetector.detect(ascii("BMW is not a bitmap")));
+    }
+
+    @Test
+    public void imageQuotingPdfHeader() {
+        // JPEG 注释段、PNG 文本块中含 PDF 头
+        byte[] jpeg = concat(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xFE, 0, 10}, ascii("%PDF-1.4"));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(jpeg));
+        byte[] png = concat(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 12},
+                ascii("tEXtComment\u0000%PDF-1.4"));
+        assertEquals(FileType.IMAGE, FileTypeDetector.detect(png));
+    }
+
+    @Test
+    public void html() {
+        assertEquals(FileType.HTML, FileTypeDetector.detect(concat(BOM, ascii("<!DOCTYPE html><html></html>"))));
+        assertEquals(FileType.HTML, FileTypeDetector.detect(ascii("<!-- generated -->\n<html><body></body></html>")));
+        assertEquals(FileType.HTML, FileTypeDetector.detect(
+                ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<html xmlns=\"http://www.w3.org/1999/xhtml\"></html>")));
+        assertEquals(FileType.HTML, FileTypeDetector.detect(ascii("  <HEAD><title>t</title></HEAD>")));
+        assertEquals(FileType.HTML, FileTypeDetector.detect(ascii("<html><body><pre>%PDF-1.4</pre></body></html>")));
+
+        assertNull(FileTypeDetector.detect(ascii("<htmlx></htmlx>")));
+        assertNull(FileTypeDetector.detect(ascii("<?xml version=\"1.0\"?><root/>")));
+        assertNull(FileTypeDetector.detect(ascii("<!-- unterminated <html>")));
+    }
+
+    @Test
+    public void unknown() {
+        assertNull(FileTypeDetector.detect(new byte[0]));
+        assertNull(FileTypeDetector.detect(ascii("plain text")));
+    }
+
+    @Test
+    public void file() throws IOException {
+        File file = Files.createTempFile("detect", ".bin").toFile();
+        try {
+            Files.write(file.toPath(), ole2("WordDocument"));
+            assertEquals(FileType.DOC, FileTypeDetector.detect(file));
+            Files.write(file.toPath(), archive("[Content_Types].xml", "xl/workbook.xml"));
+            assertEquals(FileType.XLSX, FileTypeDetector.detect(file));
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * 构造 512 字节扇区的最小 OLE2 文档: 扇区 0 为 FAT, 扇区 1 为目录, 根存储下为指定流及 SummaryInformation
+     */
+    private byte[] ole2(String stream) {
+        ByteBuffer buffer = ByteBuffer.allocate(512 * 3).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[]{(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1});
+        buffer.putShort(0x1A, (short) 3);
+        buffer.putShort(0x1C, (short) 0xFFFE);
+        buffer.putShort(0x1E, (short) 9);
+        buffer.putShort(0x20, (short) 6);
+        buffer.putInt(0x2C, 1);
+        buffer.putInt(0x30, 1);
+        buffer.putInt(0x44, -2);
+        for (int i = 0; i < 109; i++) {
+            buffer.putInt(0x4C + i * 4, i == 0 ? 0 : -1);
+        }
+
+        int fat = 512;
+        for (int i = 0; i < 128; i++) {
+            buffer.putInt(fat + i * 4, -1);
+        }
+        buffer.putInt(fat, -3);
+        buffer.putInt(fat + 4, -2);
+
+        int directory = 1024;
+        entry(buffer, directory, "Root Entry", -1, -1, 1);
+        entry(buffer, directory + 128, stream, -1, 2, -1);
+        entry(buffer, directory + 256, "\u0005SummaryInformation", -1, -1, -1);
+        entry(buffer, directory + 384, "", -1, -1, -1);
+        return buffer.array();
+    }
+
+    private void entry(ByteBuffer buffer, int pos, String name, int left, int right, int child) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_16LE);
+        buffer.position(pos);
+        buffer.put(bytes);
+        buffer.putShort(pos + 0x40, (short) (name.isEmpty() ? 0 : bytes.length + 2));
+        buffer.putInt(pos + 0x44, left);
+        buffer.putInt(pos + 0x48, right);
+        buffer.putInt(pos + 0x4C, child);
+    }
+
+    private byte[] archive(String... names) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(outputStream)) {
+            for (String name : names) {
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(ascii("<x/>"));
+                zip.closeEntry();
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    private byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+}
@@ -26,6 +26,13 @@ public class FileTypeUtilsTest {
         System.out.println(FileTypeUtils.isRtf(new File("F:\\test\\1.rtf")));
     }
 
+    @Test
+    public void detect() {
+        System.out.println(FileTypeUtils.detect(new File("F:\\xls.xls")));
+        System.out.println(FileTypeUtils.detect("%PDF-1.7".getBytes()));
+        System.out.println(FileTypeUtils.detect("<!DOCTYPE html><html></html>".getBytes()));
+    }
+
 
 
 }
@@ -3,6 +3,7 @@ package cn.darkjrong.watermark;
 import cn.darkjrong.watermark.exceptions.WatermarkException;
 import org.junit.jupiter.api.Test;
 
+import java.awt.*;
 import java.io.File;
 
 public class ImageUtilsTest {
@@ -14,5 +15,15 @@ public class ImageUtilsTest {
         
     }
 
+    @Test
+    public void createStamp() throws WatermarkException {
+
+        ImageUtils.createStamp("小i机器人", Color.red, 60, 30F, 0.5F);
+        ImageUtils.createStamp("小i机器人", Color.red, 60, 30F, 0.5F);
+
+        StampCache stampCache = ImageUtils.getStampCache();
+        System.out.println(stampCache.getHitCount() + " " + stampCache.getMissCount() + " " + stampCache.getEvictionCount());
+    }
+
 
 }
@@ -0,0 +1,138 @@
+package cn.darkjrong.watermark.factory;
+
+import cn.darkjrong.watermark.ParallelUtils;
+import cn.darkjrong.watermark.WatermarkUtils;
+import cn.darkjrong.watermark.domain.ImageFile;
+import cn.darkjrong.watermark.domain.SrcFile;
+import cn.darkjrong.watermark.domain.WatermarkParam;
+import com.aspose.pdf.Document;
+import com.aspose.pdf.Operator;
+import com.aspose.pdf.Page;
+import com.aspose.pdf.Rotation;
+import com.aspose.pdf.TextFragment;
+import com.aspose.pdf.XImage;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * PDF 水印处理器测试, 以 Aspose 构造文档, 对比按页面区间并行与顺序处理的结果
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class PdfWatermarkProcessorTest {
+
+    private static final Pattern IMAGE = Pattern.compile("/Subtype\\s*/Image");
+
+    @Test
+    public void parallelPagesMatchSequential() throws Exception {
+        byte[] source = document(9);
+
+        boolean parallelPages = PdfWatermarkProcessor.isParallelPages();
+        int minChunkPages = PdfWatermarkProcessor.getMinChunkPages();
+        boolean vectorText = PdfWatermarkProcessor.isVectorText();
+        int parallelism = ParallelUtils.getParallelism();
+        try {
+            PdfWatermarkProcessor.setVectorText(false);
+            PdfWatermarkProcessor.setMinChunkPages(2);
+            ParallelUtils.setParallelism(4);
+
+            PdfWatermarkProcessor.setParallelPages(false);
+            byte[] sequential = WatermarkUtils.addWatermark(param(source));
+            PdfWatermarkProcessor.setParallelPages(true);
+            byte[] parallel = WatermarkUtils.addWatermark(param(source));
+
+            // 整个文档只有一个水印图片对象
+            assertEquals(1, count(sequential));
+            assertEquals(1, count(parallel));
+
+            Document expected = new Document(new ByteArrayInputStream(sequential));
+            Document actual = new Document(new ByteArrayInputStream(parallel));
+            try {
+                assertEquals(expected.getPages().size(), actual.getPages().size());
+                for (int i = 1; i <= expected.getPages().size(); i++) {
+                    Page left = expected.getPages().get_Item(i);
+                    Page right = actual.getPages().get_Item(i);
+                    assertEquals(left.getRotate(), right.getRotate(), "page " + i);
+                    assertEquals(operators(left), operators(right), "page " + i);
+                    assertEquals(images(left), images(right), "page " + i);
+                    assertEquals(left.getResources().getFonts().size(), right.getResources().getFonts().size(), "page " + i);
+                }
+            } finally {
+                expected.close();
+                actual.close();
+            }
+        } finally {
+            PdfWatermarkProcessor.setParallelPages(parallelPages);
+            PdfWatermarkProcessor.setMinChunkPages(minChunkPages);
+            PdfWatermarkProcessor.setVectorText(vectorText);
+            ParallelUtils.setParallelism(parallelism);
+        }
+    }
+
+    private WatermarkParam param(byte[] source) {
+        return WatermarkParam.builder()
+                .file(SrcFile.builder().bytes(source).build())
+                .imageFile(ImageFile.builder().text("watermark").build())
+                .fontSize(30)
+                .degree(30F)
+                .alpha(0.5F)
+                .bespread(Boolean.TRUE)
+                .color(Color.red)
+                .build();
+    }
+
+    private byte[] document(int pages) {
+        Document document = new Document();
+        try {
+            for (int i = 1; i <= pages; i++) {
+                Page page = document.getPages().add();
+                page.getParagraphs().add(new TextFragment("page " + i));
+                if (i % 4 == 0) {
+                    page.setRotate(Rotation.on90);
+                }
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            document.save(outputStream);
+            return outputStream.toByteArray();
+        } finally {
+            document.close();
+        }
+    }
+
+    private List<String> operators(Page page) {
+        List<String> operators = new ArrayList<>();
+        for (Operator operator : page.getContents()) {
+            operators.add(operator.toString());
+        }
+        return operators;
+    }
+
+    private List<String> images(Page page) {
+        List<String> names = new ArrayList<>();
+        for (XImage image : page.getResources().getImages()) {
+            names.add(image.getName() + ":" + image.getWidth() + "x" + image.getHeight());
+        }
+        return names;
+    }
+
+    private int count(byte[] pdf) {
+        Matcher matcher = IMAGE.matcher(new String(pdf, StandardCharsets.ISO_8859_1));
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+}
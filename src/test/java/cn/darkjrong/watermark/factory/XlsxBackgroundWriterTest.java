@@ -0,0 +1,383 @@
+package cn.darkjrong.watermark.factory;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * xlsx 背景图片流式写出器往返测试, 以 java.util.zip 构造工作簿, 写出后再读回校验
+ *
+ * @author Rong.Jia
+ * @date 2024/04/22
+ */
+public class XlsxBackgroundWriterTest {
+
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String STRICT_NS = "http://purl.oclc.org/ooxml/spreadsheetml/main";
+    private static final String STRICT_REL_NS = "http://purl.oclc.org/ooxml/officeDocument/relationships";
+    private static final String SHEET = "xl/worksheets/sheet1.xml";
+    private static final String SHEET_RELS = "xl/worksheets/_rels/sheet1.xml.rels";
+    private static final byte[] IMAGE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 1, 2, 3, 4};
+
+    private static final String CONTENT_TYPES = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+            + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+            + "<Override PartName=\"/" + SHEET + "\" "
+            + "ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+            + "</Types>";
+
+    @Test
+    public void copyRawEntries() throws Exception {
+        Map<String, String> parts = workbook(sheet("", MAIN_NS, REL_NS, ""));
+        parts.put("xl/styles.xml", repeat("<styleSheet/>", 200));
+        byte[] source = zip(parts, "docProps/app.xml", false);
+
+        byte[] result = write(source, null);
+
+        // 未修改的条目压缩数据原样复制, 压缩后大小与校验和不变
+        File in = temp(source);
+        File out = temp(result);
+        try (ZipFile before = new ZipFile(in); ZipFile after = new ZipFile(out)) {
+            for (String name : new String[]{"xl/styles.xml", "docProps/app.xml"}) {
+                ZipEntry original = before.getEntry(name);
+                ZipEntry copied = after.getEntry(name);
+                assertNotNull(copied, name);
+                assertEquals(original.getMethod(), copied.getMethod(), name);
+                assertEquals(original.getCompressedSize(), copied.getCompressedSize(), name);
+                assertEquals(original.getCrc(), copied.getCrc(), name);
+            }
+            assertEquals(ZipEntry.STORED, after.getEntry("xl/media/watermark.png").getMethod());
+        } finally {
+            Files.delete(in.toPath());
+            Files.delete(out.toPath());
+        }
+
+        // 按流读取时逐条目校验 CRC
+        Map<String, byte[]> entries = unzip(result);
+        assertEquals(parts.get("xl/styles.xml"), text(entries, "xl/styles.xml"));
+        assertEquals("<Properties/>", text(entries, "docProps/app.xml"));
+        assertArrayEquals(IMAGE, entries.get("xl/media/watermark.png"));
+        assertCrc(result);
+    }
+
+    @Test
+    public void copyDataDescriptors() throws Exception {
+        // ZipOutputStream 写出的压缩条目大小与校验和都在数据描述符中
+        byte[] source = zip(workbook(sheet("", MAIN_NS, REL_NS, "")), null, true);
+        assertTrue(hasDataDescriptor(source));
+
+        byte[] result = write(source, null);
+
+        Map<String, byte[]> entries = unzip(result);
+        assertTrue(text(entries, "[Content_Types].xml").contains("Extension=\"png\""));
+        assertTrue(text(entries, SHEET).contains("<picture xmlns:r=\"" + REL_NS + "\" r:id=\""));
+        assertCrc(result);
+    }
+
+    @Test
+    public void insertPicture() throws Exception {
+        byte[] result = write(zip(workbook(sheet("", MAIN_NS, REL_NS, "<tableParts count=\"0\"/>")), null, false), null);
+
+        Map<String, byte[]> entries = unzip(result);
+        String sheet = text(entries, SHEET);
+        String id = pictureId(sheet, "");
+        assertTrue(sheet.indexOf("<picture ") < sheet.indexOf("<tableParts"));
+        assertTrue(sheet.indexOf("<picture ") > sheet.indexOf("<pageMargins"));
+        assertRelationship(text(entries, SHEET_RELS), id, REL_NS + "/image", "../media/watermark.png");
+    }
+
+    @Test
+    public void insertPrefixedPicture() throws Exception {
+        byte[] result = write(zip(workbook(sheet("x:", MAIN_NS, REL_NS, "")), null, false), null);
+
+        Map<String, byte[]> entries = unzip(result);
+        String sheet = text(entries, SHEET);
+        String id = pictureId(sheet, "x:");
+        assertTrue(sheet.indexOf("<x:picture ") > sheet.indexOf("<x:pageMargins"));
+        assertTrue(sheet.endsWith("</x:worksheet>"));
+        assertRelationship(text(entries, SHEET_RELS), id, REL_NS + "/image", "../media/watermark.png");
+    }
+
+    @Test
+    public void insertStrictPicture() throws Exception {
+        byte[] result = write(zip(workbook(sheet("", STRICT_NS, STRICT_REL_NS, "")), null, false), null);
+
+        Map<String, byte[]> entries = unzip(result);
+        String sheet = text(entries, SHEET);
+        assertTrue(sheet.contains("<picture xmlns:r=\"" + STRICT_REL_NS + "\""));
+        assertRelationship(text(entries, SHEET_RELS), pictureId(sheet, ""), STRICT_REL_NS + "/image",
+                "../media/watermark.png");
+    }
+
+    @Test
+    public void replacePicture() throws Exception {
+        Map<String, String> parts = workbook(sheet("", MAIN_NS, REL_NS, "<picture r:id=\"rId1\"/>"));
+        parts.put(SHEET_RELS, "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId1\" Type=\"" + REL_NS + "/image\" Target=\"../media/image1.png\"/>"
+                + "</Relationships>");
+        parts.put("xl/media/image1.png", "old");
+
+        byte[] result = write(zip(parts, null, false), null);
+
+        Map<String, byte[]> entries = unzip(result);
+        String sheet = text(entries, SHEET);
+        assertEquals(sheet.indexOf("<picture "), sheet.lastIndexOf("<picture "));
+        String id = pictureId(sheet, "");
+        assertNotEquals("rId1", id);
+        String relationships = text(entries, SHEET_RELS);
+        assertRelationship(relationships, id, REL_NS + "/image", "../media/watermark.png");
+        // 原背景图片关系删除, 图片文件保留
+        assertFalse(relationships.contains("Id=\"rId1\""), relationships);
+        assertEquals("old", text(entries, "xl/media/image1.png"));
+        assertCrc(result);
+    }
+
+    @Test
+    public void replaceHeaderDrawing() throws Exception {
+        String drawing = "xl/drawings/vmlDrawing1.vml";
+        String comments = "xl/drawings/vmlDrawing2.vml";
+        Map<String, String> parts = workbook(sheet("", MAIN_NS, REL_NS,
+                "<headerFooter differentFirst=\"1\"><oddHeader>&amp;L&amp;G&amp;C title</oddHeader></headerFooter>"
+                        + "<legacyDrawing r:id=\"rId2\"/><legacyDrawingHF r:id=\"rId1\"/>"));
+        parts.put(SHEET_RELS, "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId1\" Type=\"" + REL_NS + "/vmlDrawing\" Target=\"../drawings/vmlDrawing1.vml\"/>"
+                + "<Relationship Id=\"rId2\" Type=\"" + REL_NS + "/vmlDrawing\" Target=\"../drawings/vmlDrawing2.vml\"/>"
+                + "</Relationships>");
+        parts.put(drawing, "<xml/>");
+        parts.put("xl/drawings/_rels/vmlDrawing1.vml.rels", "<Relationships/>");
+        parts.put(comments, "<xml><comments/></xml>");
+
+        byte[] result = write(zip(parts, null, false), new int[]{100, 50});
+
+        Map<String, byte[]> entries = unzip(result);
+        String sheet = text(entries, SHEET);
+        Matcher matcher = Pattern.compile("<legacyDrawingHF [^>]*r:id=\"([^\"]+)\"").matcher(sheet);
+        assertTrue(matcher.find(), sheet);
+        assertEquals(sheet.indexOf("<legacyDrawingHF "), sheet.lastIndexOf("<legacyDrawingHF "));
+        assertTrue(sheet.contains("<oddHeader>&amp;C title&amp;G</oddHeader>"), sheet);
+        assertTrue(sheet.contains("<firstHeader>&amp;C&amp;G</firstHeader>"), sheet);
+
+        // 原页眉绘图及其关系删除, 批注绘图保留
+        String relationships = text(entries, SHEET_RELS);
+        assertFalse(relationships.contains("Id=\"rId1\""), relationships);
+        assertRelationship(relationships, "rId2", REL_NS + "/vmlDrawing", "../drawings/vmlDrawing2.vml");
+        assertFalse(entries.containsKey(drawing));
+        assertFalse(entries.containsKey("xl/drawings/_rels/vmlDrawing1.vml.rels"));
+        assertEquals("<xml><comments/></xml>", text(entries, comments));
+
+        String id = matcher.group(1);
+        Matcher target = Pattern.compile("Id=\"" + id + "\"[^>]*Target=\"\\.\\./drawings/([^\"]+)\"")
+                .matcher(relationships);
+        assertTrue(target.find(), relationships);
+        String vml = text(entries, "xl/drawings/" + target.group(1));
+        assertTrue(vml.contains("id=\"CH\"") && vml.contains("id=\"CHFIRST\""), vml);
+        assertTrue(text(entries, "xl/drawings/_rels/" + target.group(1) + ".rels").contains("../media/watermark.png"));
+        assertCrc(result);
+    }
+
+    @Test
+    public void fallbackOnZip64() throws Exception {
+        byte[] source = zip(workbook(sheet("", MAIN_NS, REL_NS, "")), null, false);
+        // 在中央目录结束记录前放入 Zip64 定位记录
+        int end = source.length - 22;
+        ByteArrayOutputStream zip64 = new ByteArrayOutputStream();
+        zip64.write(source, 0, end);
+        zip64.write(new byte[]{0x50, 0x4b, 0x06, 0x07});
+        zip64.write(new byte[16]);
+        zip64.write(source, end, 22);
+
+        assertNull(XlsxBackgroundWriter.open(ByteBuffer.wrap(zip64.toByteArray()), IMAGE, "png", null));
+    }
+
+    @Test
+    public void fallbackOnNonUtf8() throws Exception {
+        String sheet = sheet("", MAIN_NS, REL_NS, "").replace("encoding=\"UTF-8\"", "encoding=\"ISO-8859-1\"");
+        byte[] source = zip(workbook(sheet), null, false);
+
+        assertNull(XlsxBackgroundWriter.open(ByteBuffer.wrap(source), IMAGE, "png", null));
+    }
+
+    private static byte[] write(byte[] source, int[] header) throws Exception {
+        XlsxBackgroundWriter writer = XlsxBackgroundWriter.open(ByteBuffer.wrap(source), IMAGE, "png", header);
+        assertNotNull(writer);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> workbook(String sheet) {
+        Map<String, String> parts = new LinkedHashMap<>();
+        parts.put("[Content_Types].xml", CONTENT_TYPES);
+        parts.put(SHEET, sheet);
+        return parts;
+    }
+
+    private static String sheet(String prefix, String namespace, String relNamespace, String tail) {
+        String xmlns = prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix.substring(0, prefix.length() - 1);
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<" + prefix + "worksheet " + xmlns + "=\"" + namespace + "\" xmlns:r=\"" + relNamespace + "\">"
+                + "<" + prefix + "sheetData><" + prefix + "row r=\"1\"><" + prefix + "c r=\"A1\" t=\"inlineStr\">"
+                + "<" + prefix + "is><" + prefix + "t>a &lt; b &gt; c</" + prefix + "t></" + prefix + "is>"
+                + "</" + prefix + "c></" + prefix + "row></" + prefix + "sheetData>"
+                + "<!-- comment with <picture/> -->"
+                + "<" + prefix + "pageMargins left=\"0.7\" right=\"0.7\" top=\"0.75\" bottom=\"0.75\" header=\"0.3\" footer=\"0.3\"/>"
+                + tail.replace("<", "<" + prefix).replace("<" + prefix + "/", "</" + prefix)
+                + "</" + prefix + "worksheet>";
+    }
+
+    /**
+     * 构造工作簿
+     *
+     * @param parts      部件
+     * @param stored     不压缩存储的条目, 可为空
+     * @param descriptor 压缩条目是否使用数据描述符
+     */
+    private static byte[] zip(Map<String, String> parts, String stored, boolean descriptor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, String> part : parts.entrySet()) {
+                zip.putNextEntry(entry(part.getKey(), part.getValue().getBytes(StandardCharsets.UTF_8), descriptor));
+                zip.write(part.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            if (stored != null) {
+                byte[] content = "<Properties/>".getBytes(StandardCharsets.UTF_8);
+                ZipEntry entry = new ZipEntry(stored);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(content.length);
+                entry.setCrc(crc(content));
+                zip.putNextEntry(entry);
+                zip.write(content);
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 不使用数据描述符时预先计算压缩后大小, 写入本地文件头
+     */
+    private static ZipEntry entry(String name, byte[] content, boolean descriptor) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (descriptor) {
+            return entry;
+        }
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (java.util.zip.DeflaterOutputStream out = new java.util.zip.DeflaterOutputStream(deflated,
+                new java.util.zip.Deflater(java.util.zip.Deflater.DEFAULT_COMPRESSION, true))) {
+            out.write(content);
+        }
+        entry.setSize(content.length);
+        entry.setCompressedSize(deflated.size());
+        entry.setCrc(crc(content));
+        return entry;
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static boolean hasDataDescriptor(byte[] zip) {
+        ByteBuffer buffer = ByteBuffer.wrap(zip).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        return buffer.getInt(0) == 0x04034b50 && (buffer.getShort(6) & 0x08) != 0;
+    }
+
+    private static Map<String, byte[]> unzip(byte[] zip) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, length);
+                }
+                assertNull(entries.put(entry.getName(), out.toByteArray()), entry.getName());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 按中央目录逐条目校验 CRC
+     */
+    private static void assertCrc(byte[] zip) throws IOException {
+        File file = temp(zip);
+        try (ZipFile zipFile = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                try (java.io.InputStream in = zipFile.getInputStream(entry)) {
+                    int length;
+                    while ((length = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, length);
+                    }
+                }
+                assertEquals(entry.getCrc(), crc(out.toByteArray()), entry.getName());
+                assertEquals(entry.getSize(), out.size(), entry.getName());
+            }
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static void assertRelationship(String relationships, String id, String type, String target) {
+        assertTrue(relationships.contains("Id=\"" + id + "\""), relationships);
+        Matcher matcher = Pattern.compile("<Relationship [^>]*Id=\"" + id + "\"[^>]*/>").matcher(relationships);
+        assertTrue(matcher.find(), relationships);
+        assertTrue(matcher.group().contains("Type=\"" + type + "\""), matcher.group());
+        assertTrue(matcher.group().contains("Target=\"" + target + "\""), matcher.group());
+    }
+
+    private static String pictureId(String sheet, String prefix) {
+        Matcher matcher = Pattern.compile("<" + prefix + "picture [^>]*r:id=\"([^\"]+)\"").matcher(sheet);
+        assertTrue(matcher.find(), sheet);
+        return matcher.group(1);
+    }
+
+    private static String text(Map<String, byte[]> entries, String name) {
+        assertNotNull(entries.get(name), name);
+        return new String(entries.get(name), StandardCharsets.UTF_8);
+    }
+
+    private static File temp(byte[] content) throws IOException {
+        File file = File.createTempFile("watermark", ".xlsx");
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+}